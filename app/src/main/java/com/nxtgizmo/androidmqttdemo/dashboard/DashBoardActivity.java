@@ -1,94 +1,110 @@
 package com.nxtgizmo.androidmqttdemo.dashboard;
 
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.graphics.Color;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
 import android.text.method.ScrollingMovementMethod;
+import android.text.style.ForegroundColorSpan;
 import android.widget.TextView;
 
 import androidx.appcompat.app.AppCompatActivity;
 
 import com.nxtgizmo.androidmqttdemo.R;
-import com.nxtgizmo.androidmqttdemo.mqtt_app.MqttApp;
+import com.nxtgizmo.androidmqttdemo.worker.WorkerService;
 
-import org.eclipse.paho.android.service.MqttAndroidClient;
-import org.eclipse.paho.client.mqttv3.MqttException;
+import java.util.List;
 
-import javax.inject.Inject;
+import utils.EventLog;
 
-import timber.log.Timber;
-import utils.JobExecutionService;
-import utils.data.JobDBHelper;
+import static com.nxtgizmo.androidmqttdemo.mqtt_app.AppConfig.LOG_REFRESH_RATE;
 
 
-public class DashBoardActivity extends AppCompatActivity implements DashboardContract {
+// only shows what the worker service does, the jobs keep running when it goes away
+public class DashBoardActivity extends AppCompatActivity {
 
-    @Inject
-    MqttAndroidClient client;
     private TextView logTextView;
+    private EventLog eventLog;
+    private boolean bound = false;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private long renderedVersion = -1;
+    // redraws the log at LOG_REFRESH_RATE frames per second while the activity is visible
+    private final Runnable refreshLog = new Runnable() {
+        @Override
+        public void run() {
+            renderLog();
+            handler.postDelayed(this, 1000 / Math.max(1, LOG_REFRESH_RATE));
+        }
+    };
+
+    private final ServiceConnection connection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            eventLog = ((WorkerService.LocalBinder) service).getEventLog();
+            renderedVersion = -1;
+        }
 
-    private JobExecutionService jobExecutionService;
-    private JobDBHelper dbHelper;
-    public static String APP_NAME;
-    public static String REGISTRATION_TOPIC;
-    public static String UNREGISTRATION_TOPIC;
-    public static String EXECUTABLE_JOB_CLASS;
-    public static String EXECUTABLE_START_METHOD_NAME;
-    public static String WEB_ADDRESS;
-    public static int QOS;
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            eventLog = null;
+        }
+    };
 
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        // the worker starts before the layout is inflated, it builds the engine off the main thread
+        WorkerService.start(this);
         setContentView(R.layout.activity_main);
-        ((MqttApp) getApplication()).getMqttComponent().inject(this);
         logTextView = findViewById(R.id.message);
         logTextView.setMovementMethod(new ScrollingMovementMethod());
-        dbHelper = new JobDBHelper(getApplicationContext());
-
-        APP_NAME = getString(R.string.app_name);
-        REGISTRATION_TOPIC = getString(R.string.registration_topic);
-        UNREGISTRATION_TOPIC = getString(R.string.unregistration_topic);
-        QOS = Integer.parseInt(getString(R.string.qos));
-        EXECUTABLE_JOB_CLASS = getString(R.string.executable_job_class);
-        EXECUTABLE_START_METHOD_NAME = getString(R.string.executable_start_method_name);
-        WEB_ADDRESS = getString(R.string.web_address);
-
-        try {
-            jobExecutionService = new JobExecutionService(client, this);
-        } catch (MqttException e) {
-            Timber.d("======================= %s", e.getMessage());
-            logTextView.append(e.getMessage() + "\n------------------\n");
-        }
     }
 
     @Override
-    public void onSuccess(String successMessage) {
-        Timber.d("======================= %s", successMessage);
-        addLogInTextView(successMessage);
+    protected void onStart() {
+        super.onStart();
+        bound = bindService(new Intent(this, WorkerService.class), connection, Context.BIND_AUTO_CREATE);
+        handler.post(refreshLog);
     }
 
     @Override
-    public void onError(String errorMessage) {
-        Timber.e("======================= %s", errorMessage);
-        addLogInTextView(errorMessage);
-    }
-
-    @Override
-    protected void onDestroy() {
-        try {
-            jobExecutionService.terminate();
-        } catch (MqttException e) {
-            Timber.d("======================= %s", e.getMessage());
-            logTextView.append(e.getMessage() + "\n------------------\n");
+    protected void onStop() {
+        handler.removeCallbacks(refreshLog);
+        if (bound) {
+            unbindService(connection);
+            bound = false;
         }
-        super.onDestroy();
+        eventLog = null;
+        super.onStop();
     }
 
-    public JobDBHelper getDbHelper() {
-        return dbHelper;
-    }
-
-    private void addLogInTextView(String logMessage) {
-        logTextView.append(logMessage + "\n------------------\n");
+    // the view shows the ring buffer of the event log, so it never holds more than LOG_CAPACITY events
+    private void renderLog() {
+        EventLog log = eventLog;
+        if (log == null)
+            return;
+        long version = log.getVersion();
+        if (version == renderedVersion)
+            return;
+        renderedVersion = version;
+        List<EventLog.Event> events = log.snapshot();
+        SpannableStringBuilder sb = new SpannableStringBuilder(getString(R.string.mdcp_android_client));
+        for (EventLog.Event event : events) {
+            int start = sb.length();
+            sb.append(event.toString());
+            if (event.getType() == EventLog.TYPE_ERROR)
+                sb.setSpan(new ForegroundColorSpan(Color.RED), start, sb.length(),
+                        Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+            sb.append("\n------------------\n");
+        }
+        logTextView.setText(sb);
     }
 }
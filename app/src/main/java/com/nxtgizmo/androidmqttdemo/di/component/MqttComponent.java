@@ -1,15 +1,18 @@
 package com.nxtgizmo.androidmqttdemo.di.component;
 
-import com.nxtgizmo.androidmqttdemo.dashboard.DashBoardActivity;
+import com.nxtgizmo.androidmqttdemo.worker.WorkerService;
 import com.nxtgizmo.androidmqttdemo.di.model.AppModule;
 import com.nxtgizmo.androidmqttdemo.di.model.NetModule;
 
 import javax.inject.Singleton;
 
 import dagger.Component;
+import okhttp3.OkHttpClient;
 
 @Singleton
 @Component(modules = {AppModule.class, NetModule.class})
 public interface MqttComponent {
-   void inject(DashBoardActivity dashBoardActivity);
+   void inject(WorkerService workerService);
+
+   OkHttpClient httpClient();
 }
\ No newline at end of file
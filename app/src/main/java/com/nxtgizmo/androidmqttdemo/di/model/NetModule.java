@@ -1,28 +1,66 @@
 package com.nxtgizmo.androidmqttdemo.di.model;
 
 import android.app.Application;
+import android.content.Context;
+import android.content.SharedPreferences;
 
 import com.nxtgizmo.androidmqttdemo.R;
 
 import org.eclipse.paho.android.service.MqttAndroidClient;
 import org.eclipse.paho.client.mqttv3.MqttClient;
 
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
 import javax.inject.Singleton;
 
 import dagger.Module;
 import dagger.Provides;
+import okhttp3.ConnectionPool;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import utils.HttpTimingListener;
 
 @Module
 public class NetModule {
 
+    private static final String MQTT_PREFERENCES = "mqtt";
+    private static final String CLIENT_ID = "client_id";
+
     public NetModule() {
     }
 
+    // the broker keeps a persistent session under the client id, so it is kept across restarts
     @Provides
     @Singleton
     MqttAndroidClient provideMqttAndroidClient(Application application) {
-        String clientId = MqttClient.generateClientId();
+        SharedPreferences preferences = application.getSharedPreferences(MQTT_PREFERENCES, Context.MODE_PRIVATE);
+        String clientId = preferences.getString(CLIENT_ID, null);
+        if (clientId == null) {
+            clientId = MqttClient.generateClientId();
+            preferences.edit().putString(CLIENT_ID, clientId).apply();
+        }
         String brokerAddress = application.getString(R.string.broker_address);
         return new MqttAndroidClient(application, brokerAddress, clientId);
     }
-}
\ No newline at end of file
+
+    // shared by every download and upload so jobs reuse pooled connections and tls sessions
+    @Provides
+    @Singleton
+    OkHttpClient provideOkHttpClient(Application application) {
+        int maxIdleConnections = Integer.parseInt(application.getString(R.string.http_max_idle_connections));
+        long keepAlive = Long.parseLong(application.getString(R.string.http_keep_alive));
+        long connectTimeout = Long.parseLong(application.getString(R.string.http_connect_timeout));
+        long readTimeout = Long.parseLong(application.getString(R.string.http_read_timeout));
+        long writeTimeout = Long.parseLong(application.getString(R.string.http_write_timeout));
+        return new OkHttpClient.Builder()
+                .connectionPool(new ConnectionPool(maxIdleConnections, keepAlive, TimeUnit.MILLISECONDS))
+                .protocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1))
+                .connectTimeout(connectTimeout, TimeUnit.MILLISECONDS)
+                .readTimeout(readTimeout, TimeUnit.MILLISECONDS)
+                .writeTimeout(writeTimeout, TimeUnit.MILLISECONDS)
+                .retryOnConnectionFailure(true)
+                .eventListenerFactory(HttpTimingListener.FACTORY)
+                .build();
+    }
+}
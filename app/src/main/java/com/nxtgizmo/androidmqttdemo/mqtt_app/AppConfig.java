@@ -0,0 +1,119 @@
+package com.nxtgizmo.androidmqttdemo.mqtt_app;
+
+import android.content.Context;
+
+import com.nxtgizmo.androidmqttdemo.R;
+
+// configuration read once from the string resources when the process starts, so the worker
+// service and the activity see the same values whichever of them runs first
+public final class AppConfig {
+
+    public static String APP_NAME;
+    public static String REGISTRATION_TOPIC;
+    public static String UNREGISTRATION_TOPIC;
+    public static String CAPACITY_TOPIC;
+    public static String REJECTION_TOPIC;
+    public static String CANCEL_TOPIC;
+    public static String EXECUTABLE_JOB_CLASS;
+    public static String EXECUTABLE_START_METHOD_NAME;
+    public static String EXECUTABLE_STREAM_START_METHOD_NAME;
+    public static String EXECUTABLE_COMBINE_METHOD_NAME;
+    public static String WEB_ADDRESS;
+    public static boolean STARTUP_PRECONNECT;
+    public static int QOS;
+    public static int MQTT_KEEP_ALIVE;
+    public static boolean MQTT_CLEAN_SESSION;
+    public static long MQTT_RECONNECT_MIN_DELAY;
+    public static long MQTT_RECONNECT_MAX_DELAY;
+    public static int MQTT_OUTBOX_CAPACITY;
+    public static int EXECUTION_SLOTS;
+    public static int JOB_QUEUE_CAPACITY;
+    public static long DRAIN_TIMEOUT;
+    public static int PIPELINE_DEPTH;
+    public static int UPLOAD_SLOTS;
+    public static int BATCH_PARALLELISM;
+    public static long OUTPUT_MAP_SIZE;
+    public static long EXECUTABLE_CACHE_MAX_BYTES;
+    public static int DOWNLOAD_MAX_ATTEMPTS;
+    public static long DOWNLOAD_RETRY_DELAY;
+    public static long UPLOAD_CHUNK_SIZE;
+    public static int UPLOAD_MAX_ATTEMPTS;
+    public static long UPLOAD_RETRY_DELAY;
+    public static boolean UPLOAD_DEDUP_CHECK;
+    public static long RESOURCE_SAMPLE_INTERVAL;
+    public static int STATS_BATCH_SIZE;
+    public static long STATS_FLUSH_INTERVAL;
+    public static String METRICS_TOPIC;
+    public static long METRICS_EXPORT_INTERVAL;
+    public static int METRICS_PORT;
+    public static int LOG_CAPACITY;
+    public static int LOG_REFRESH_RATE;
+    public static long GOVERNOR_INTERVAL;
+    public static int GOVERNOR_MIN_BATTERY;
+    public static int GOVERNOR_LOW_BATTERY;
+    public static int GOVERNOR_MAX_SLOWDOWN;
+    public static boolean ISOLATED_EXECUTION;
+    public static int JOB_PROCESSES;
+    public static long JOB_PROCESS_MAX_RSS;
+    public static long JOB_PROCESS_CONNECT_TIMEOUT;
+    public static long JOB_TIMEOUT;
+    public static int JOB_MAX_RESUMES;
+    public static long CANCEL_GRACE_PERIOD;
+
+    private AppConfig() {
+    }
+
+    static void load(Context context) {
+        APP_NAME = context.getString(R.string.app_name);
+        REGISTRATION_TOPIC = context.getString(R.string.registration_topic);
+        UNREGISTRATION_TOPIC = context.getString(R.string.unregistration_topic);
+        CAPACITY_TOPIC = context.getString(R.string.capacity_topic);
+        REJECTION_TOPIC = context.getString(R.string.rejection_topic);
+        CANCEL_TOPIC = context.getString(R.string.cancel_topic);
+        QOS = Integer.parseInt(context.getString(R.string.qos));
+        MQTT_KEEP_ALIVE = Integer.parseInt(context.getString(R.string.mqtt_keep_alive));
+        MQTT_CLEAN_SESSION = Boolean.parseBoolean(context.getString(R.string.mqtt_clean_session));
+        MQTT_RECONNECT_MIN_DELAY = Long.parseLong(context.getString(R.string.mqtt_reconnect_min_delay));
+        MQTT_RECONNECT_MAX_DELAY = Long.parseLong(context.getString(R.string.mqtt_reconnect_max_delay));
+        MQTT_OUTBOX_CAPACITY = Integer.parseInt(context.getString(R.string.mqtt_outbox_capacity));
+        EXECUTABLE_JOB_CLASS = context.getString(R.string.executable_job_class);
+        EXECUTABLE_START_METHOD_NAME = context.getString(R.string.executable_start_method_name);
+        EXECUTABLE_STREAM_START_METHOD_NAME = context.getString(R.string.executable_stream_start_method_name);
+        EXECUTABLE_COMBINE_METHOD_NAME = context.getString(R.string.executable_combine_method_name);
+        WEB_ADDRESS = context.getString(R.string.web_address);
+        STARTUP_PRECONNECT = Boolean.parseBoolean(context.getString(R.string.startup_preconnect));
+        EXECUTION_SLOTS = Integer.parseInt(context.getString(R.string.execution_slots));
+        JOB_QUEUE_CAPACITY = Integer.parseInt(context.getString(R.string.job_queue_capacity));
+        DRAIN_TIMEOUT = Long.parseLong(context.getString(R.string.drain_timeout));
+        PIPELINE_DEPTH = Integer.parseInt(context.getString(R.string.pipeline_depth));
+        UPLOAD_SLOTS = Integer.parseInt(context.getString(R.string.upload_slots));
+        BATCH_PARALLELISM = Integer.parseInt(context.getString(R.string.batch_parallelism));
+        OUTPUT_MAP_SIZE = Long.parseLong(context.getString(R.string.output_map_size));
+        EXECUTABLE_CACHE_MAX_BYTES = Long.parseLong(context.getString(R.string.executable_cache_max_bytes));
+        DOWNLOAD_MAX_ATTEMPTS = Integer.parseInt(context.getString(R.string.download_max_attempts));
+        DOWNLOAD_RETRY_DELAY = Long.parseLong(context.getString(R.string.download_retry_delay));
+        UPLOAD_CHUNK_SIZE = Long.parseLong(context.getString(R.string.upload_chunk_size));
+        UPLOAD_MAX_ATTEMPTS = Integer.parseInt(context.getString(R.string.upload_max_attempts));
+        UPLOAD_RETRY_DELAY = Long.parseLong(context.getString(R.string.upload_retry_delay));
+        UPLOAD_DEDUP_CHECK = Boolean.parseBoolean(context.getString(R.string.upload_dedup_check));
+        RESOURCE_SAMPLE_INTERVAL = Long.parseLong(context.getString(R.string.resource_sample_interval));
+        STATS_BATCH_SIZE = Integer.parseInt(context.getString(R.string.stats_batch_size));
+        STATS_FLUSH_INTERVAL = Long.parseLong(context.getString(R.string.stats_flush_interval));
+        METRICS_TOPIC = context.getString(R.string.metrics_topic);
+        METRICS_EXPORT_INTERVAL = Long.parseLong(context.getString(R.string.metrics_export_interval));
+        METRICS_PORT = Integer.parseInt(context.getString(R.string.metrics_port));
+        LOG_CAPACITY = Integer.parseInt(context.getString(R.string.log_capacity));
+        LOG_REFRESH_RATE = Integer.parseInt(context.getString(R.string.log_refresh_rate));
+        GOVERNOR_INTERVAL = Long.parseLong(context.getString(R.string.governor_interval));
+        GOVERNOR_MIN_BATTERY = Integer.parseInt(context.getString(R.string.governor_min_battery));
+        GOVERNOR_LOW_BATTERY = Integer.parseInt(context.getString(R.string.governor_low_battery));
+        GOVERNOR_MAX_SLOWDOWN = Integer.parseInt(context.getString(R.string.governor_max_slowdown));
+        ISOLATED_EXECUTION = Boolean.parseBoolean(context.getString(R.string.isolated_execution));
+        JOB_PROCESSES = Integer.parseInt(context.getString(R.string.job_processes));
+        JOB_PROCESS_MAX_RSS = Long.parseLong(context.getString(R.string.job_process_max_rss));
+        JOB_PROCESS_CONNECT_TIMEOUT = Long.parseLong(context.getString(R.string.job_process_connect_timeout));
+        JOB_TIMEOUT = Long.parseLong(context.getString(R.string.job_timeout));
+        JOB_MAX_RESUMES = Integer.parseInt(context.getString(R.string.job_max_resumes));
+        CANCEL_GRACE_PERIOD = Long.parseLong(context.getString(R.string.cancel_grace_period));
+    }
+}
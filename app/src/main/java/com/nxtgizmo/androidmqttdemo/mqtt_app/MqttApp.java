@@ -1,6 +1,7 @@
 package com.nxtgizmo.androidmqttdemo.mqtt_app;
 
 import android.app.Application;
+import android.os.Build;
 
 import com.nxtgizmo.androidmqttdemo.BuildConfig;
 import com.nxtgizmo.androidmqttdemo.di.component.DaggerMqttComponent;
@@ -8,7 +9,18 @@ import com.nxtgizmo.androidmqttdemo.di.component.MqttComponent;
 import com.nxtgizmo.androidmqttdemo.di.model.AppModule;
 import com.nxtgizmo.androidmqttdemo.di.model.NetModule;
 
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
 import timber.log.Timber;
+import utils.StartupTimings;
+
+import static com.nxtgizmo.androidmqttdemo.mqtt_app.AppConfig.STARTUP_PRECONNECT;
+import static com.nxtgizmo.androidmqttdemo.mqtt_app.AppConfig.WEB_ADDRESS;
 
 /**
  * Created by Chetan on 2/7/2017.
@@ -19,12 +31,7 @@ public class MqttApp extends Application {
     @Override
     public void onCreate() {
         super.onCreate();
-
-        //Initialize Dagger2 component
-        mqttComponent = DaggerMqttComponent.builder()
-                .appModule(new AppModule(this))
-                .netModule(new NetModule())
-                .build();
+        AppConfig.load(this);
 
         //Initialize Timber logger
         if (BuildConfig.DEBUG) {
@@ -32,9 +39,60 @@ public class MqttApp extends Application {
         } else {
             //Timber.plant(new CrashReportingTree());
         }
+
+        // job processes run this too, they only need the config and the logger
+        if (STARTUP_PRECONNECT && isMainProcess())
+            preconnect();
+        StartupTimings.mark(StartupTimings.APP_CREATE);
     }
 
-    public MqttComponent getMqttComponent(){
+    // built on first use, which is off the main thread in the worker service and the preconnect
+    public synchronized MqttComponent getMqttComponent(){
+        if (mqttComponent == null) {
+            mqttComponent = DaggerMqttComponent.builder()
+                    .appModule(new AppModule(this))
+                    .netModule(new NetModule())
+                    .build();
+        }
         return  mqttComponent;
     }
+
+    // opens a pooled connection to the web server while the worker service connects to the broker,
+    // so the first download does not pay for the tcp and tls handshakes
+    private void preconnect() {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                OkHttpClient httpClient = getMqttComponent().httpClient();
+                Request request = new Request.Builder().url(WEB_ADDRESS).head().build();
+                try {
+                    // only the connection is wanted, it stays in the pool once the response is closed
+                    Response response = httpClient.newCall(request).execute();
+                    response.close();
+                    StartupTimings.mark(StartupTimings.HTTP_PRECONNECTED);
+                } catch (IOException | IllegalArgumentException e) {
+                    Timber.e("======================= could not preconnect to %s: %s", WEB_ADDRESS, e.getMessage());
+                }
+            }
+        }, "startup-preconnect").start();
+    }
+
+    private boolean isMainProcess() {
+        String name = null;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
+            name = Application.getProcessName();
+        } else {
+            try (InputStream in = new FileInputStream("/proc/self/cmdline")) {
+                byte[] buf = new byte[256];
+                int n = in.read(buf);
+                int end = 0;
+                while (end < n && buf[end] != 0)
+                    end++;
+                name = new String(buf, 0, end, "UTF-8");
+            } catch (IOException e) {
+                Timber.e("======================= %s", e.getMessage());
+            }
+        }
+        return getPackageName().equals(name);
+    }
 }
@@ -0,0 +1,234 @@
+package com.nxtgizmo.androidmqttdemo.worker;
+
+import android.app.Service;
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.ParcelFileDescriptor;
+import android.os.Process;
+import android.os.RemoteException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import dalvik.system.DexClassLoader;
+import timber.log.Timber;
+import utils.ExecutableCache;
+import utils.OutputChannel;
+import utils.ResourceSampler;
+
+import static com.nxtgizmo.androidmqttdemo.mqtt_app.AppConfig.EXECUTABLE_COMBINE_METHOD_NAME;
+import static com.nxtgizmo.androidmqttdemo.mqtt_app.AppConfig.EXECUTABLE_JOB_CLASS;
+
+// runs executables in a process of its own, so a crashing job or one that leaks memory is killed
+// without taking the client down. every slot class below is declared with its own process in the
+// manifest, the client keeps them bound so they stay warm, and a process keeps the job classes it
+// loaded for the next fractions of the same job.
+public class JobProcessService extends Service {
+
+    public static class Slot0 extends JobProcessService {
+    }
+
+    public static class Slot1 extends JobProcessService {
+    }
+
+    public static class Slot2 extends JobProcessService {
+    }
+
+    public static class Slot3 extends JobProcessService {
+    }
+
+    public static final Class<?>[] SLOTS = {Slot0.class, Slot1.class, Slot2.class, Slot3.class};
+
+    // request: arg1 is the request id, replyTo receives MSG_STARTED with the pid in arg2 and then
+    // MSG_RESULT with the same arg1. MSG_CANCEL interrupts the executable running for arg1.
+    public static final int MSG_EXECUTE = 1;
+    public static final int MSG_STARTED = 2;
+    public static final int MSG_RESULT = 3;
+    public static final int MSG_CANCEL = 4;
+
+    public static final String KEY_EXECUTABLE_PATH = "executable_path";
+    public static final String KEY_INPUT_URL = "input_url";
+    // read end of a pipe carrying the input slice, for the streaming entry point
+    public static final String KEY_INPUT = "input";
+    public static final String KEY_INPUT_START = "input_start";
+    public static final String KEY_INPUT_END = "input_end";
+    public static final String KEY_OUTPUT_PATH = "output_path";
+    public static final String KEY_FRACTION = "fraction";
+    public static final String KEY_TOTAL_FRACTIONS = "total_fractions";
+    // outputs to merge into KEY_OUTPUT_PATH with the combine entry point, instead of executing
+    public static final String KEY_COMBINE_INPUTS = "combine_inputs";
+
+    public static final String KEY_CONSUMED_TIME = "consumed_time"; // milliseconds
+    public static final String KEY_CLASS_INIT_TIME = "class_init_time"; // nanoseconds
+    public static final String KEY_USAGE = "usage";
+    public static final String KEY_ERROR = "error";
+
+    private HandlerThread thread;
+    private Messenger messenger;
+    private ExecutorService executor;
+    private ResourceSampler resourceSampler;
+    // executable path -> loaded job class
+    private final Map<String, Class<?>> classes = new HashMap<>();
+    // request id -> thread executing it
+    private final Map<Integer, Thread> running = new ConcurrentHashMap<>();
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        thread = new HandlerThread("job-process");
+        thread.start();
+        messenger = new Messenger(new Handler(thread.getLooper(), new Handler.Callback() {
+            @Override
+            public boolean handleMessage(Message msg) {
+                if (msg.what == MSG_EXECUTE) {
+                    submit(msg.getData(), msg.replyTo, msg.arg1);
+                    return true;
+                }
+                if (msg.what == MSG_CANCEL) {
+                    // executables that check Thread.interrupted() or block interruptibly stop here,
+                    // the others are killed with the process after a grace period
+                    Thread t = running.get(msg.arg1);
+                    if (t != null)
+                        t.interrupt();
+                    return true;
+                }
+                return false;
+            }
+        }));
+        final AtomicInteger count = new AtomicInteger();
+        executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, "job-process-" + count.incrementAndGet());
+            }
+        });
+        resourceSampler = new ResourceSampler();
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return messenger.getBinder();
+    }
+
+    @Override
+    public void onDestroy() {
+        executor.shutdownNow();
+        resourceSampler.shutdown();
+        thread.quit();
+        super.onDestroy();
+    }
+
+    private void submit(final Bundle request, final Messenger replyTo, final int requestId) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                running.put(requestId, Thread.currentThread());
+                try {
+                    replyTo.send(Message.obtain(null, MSG_STARTED, requestId, Process.myPid()));
+                    Message reply = Message.obtain(null, MSG_RESULT, requestId, 0);
+                    reply.setData(execute(request));
+                    replyTo.send(reply);
+                } catch (RemoteException e) {
+                    Timber.e("======================= %s", e.getMessage());
+                } finally {
+                    running.remove(requestId);
+                    // the interrupt of a cancel must not hit the next request on this thread
+                    Thread.interrupted();
+                }
+            }
+        });
+    }
+
+    private Bundle execute(Bundle request) {
+        request.setClassLoader(getClassLoader());
+        Bundle result = new Bundle();
+        ParcelFileDescriptor input = request.getParcelable(KEY_INPUT);
+        try {
+            Class<?> c = load(request.getString(KEY_EXECUTABLE_PATH));
+            long s = System.nanoTime();
+            Object instance = c.newInstance();
+            result.putLong(KEY_CLASS_INIT_TIME, System.nanoTime() - s);
+
+            String outputPath = request.getString(KEY_OUTPUT_PATH);
+            int fraction = request.getInt(KEY_FRACTION);
+            int totalFractions = request.getInt(KEY_TOTAL_FRACTIONS);
+            ResourceSampler.Sampling sampling = resourceSampler.begin();
+            ResourceSampler.Usage usage;
+            s = System.nanoTime();
+            try {
+                String[] combineInputs = request.getStringArray(KEY_COMBINE_INPUTS);
+                if (combineInputs != null) {
+                    Method combine = ExecutableCache.findCombineMethod(c);
+                    if (combine == null)
+                        throw new NoSuchMethodException(EXECUTABLE_COMBINE_METHOD_NAME + " is missing");
+                    combine.invoke(instance, combineInputs, outputPath);
+                } else if (input != null) {
+                    Method streamStart = ExecutableCache.findStreamStartMethod(c);
+                    try (InputStream in = new ParcelFileDescriptor.AutoCloseInputStream(input);
+                         OutputChannel output = ExecutableCache.openOutput(streamStart, outputPath)) {
+                        input = null;
+                        streamStart.invoke(instance, in, request.getLong(KEY_INPUT_START),
+                                request.getLong(KEY_INPUT_END), output != null ? output : outputPath,
+                                fraction, totalFractions);
+                    }
+                } else {
+                    Method start = ExecutableCache.findStartMethod(c);
+                    try (OutputChannel output = ExecutableCache.openOutput(start, outputPath)) {
+                        start.invoke(instance, request.getString(KEY_INPUT_URL),
+                                output != null ? output : outputPath, fraction, totalFractions);
+                    }
+                }
+            } finally {
+                usage = sampling.end();
+            }
+            result.putLong(KEY_CONSUMED_TIME, (System.nanoTime() - s) / 1000000);
+            result.putBundle(KEY_USAGE, usage.toBundle());
+        } catch (InvocationTargetException e) {
+            result.putString(KEY_ERROR, String.valueOf(e.getCause()));
+        } catch (Exception e) {
+            result.putString(KEY_ERROR, e.toString());
+        } finally {
+            if (input != null) {
+                try {
+                    input.close();
+                } catch (IOException e) {
+                    Timber.e("======================= %s", e.getMessage());
+                }
+            }
+        }
+        return result;
+    }
+
+    private synchronized Class<?> load(String executablePath) throws ClassNotFoundException {
+        Class<?> c = classes.get(executablePath);
+        if (c == null) {
+            File dexDir = getDir("job_dex", MODE_PRIVATE);
+            DexClassLoader classLoader = new DexClassLoader(executablePath, dexDir.getAbsolutePath(),
+                    null, JobProcessService.class.getClassLoader());
+            c = classLoader.loadClass(EXECUTABLE_JOB_CLASS);
+            classes.put(executablePath, c);
+        }
+        return c;
+    }
+}
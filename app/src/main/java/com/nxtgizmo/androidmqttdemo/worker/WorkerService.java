@@ -0,0 +1,185 @@
+package com.nxtgizmo.androidmqttdemo.worker;
+
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Binder;
+import android.os.Build;
+import android.os.IBinder;
+
+import com.nxtgizmo.androidmqttdemo.R;
+import com.nxtgizmo.androidmqttdemo.dashboard.DashBoardActivity;
+import com.nxtgizmo.androidmqttdemo.mqtt_app.MqttApp;
+
+import org.eclipse.paho.android.service.MqttAndroidClient;
+import org.eclipse.paho.client.mqttv3.MqttException;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import javax.inject.Inject;
+
+import okhttp3.OkHttpClient;
+import timber.log.Timber;
+import utils.EventLog;
+import utils.JobExecutionService;
+import utils.StartupTimings;
+import utils.data.JobDBHelper;
+
+import static com.nxtgizmo.androidmqttdemo.mqtt_app.AppConfig.LOG_CAPACITY;
+
+// runs the job engine in the foreground, independent of the activity, so rotating the screen or
+// leaving the app does not kill the jobs in flight. the service owns the mqtt client, the engine
+// and the database, activities only bind to it to show the event log. the engine is built and
+// stopped on a thread of its own, so the main thread is free for the activity meanwhile.
+public class WorkerService extends Service {
+
+    public static final String ACTION_STOP = "com.nxtgizmo.androidmqttdemo.worker.STOP";
+    private static final String CHANNEL_ID = "worker";
+    private static final int NOTIFICATION_ID = 1;
+
+    @Inject
+    MqttAndroidClient client;
+    @Inject
+    OkHttpClient httpClient;
+
+    private final IBinder binder = new LocalBinder();
+    private EventLog eventLog;
+    private JobDBHelper dbHelper;
+    private JobExecutionService jobExecutionService;
+    private ExecutorService lifecycle;
+    private boolean stopping = false;
+
+    public class LocalBinder extends Binder {
+        public EventLog getEventLog() {
+            return eventLog;
+        }
+    }
+
+    public static void start(Context context) {
+        Intent intent = new Intent(context, WorkerService.class);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O)
+            context.startForegroundService(intent);
+        else
+            context.startService(intent);
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        StartupTimings.mark(StartupTimings.SERVICE_CREATE);
+        eventLog = new EventLog(LOG_CAPACITY);
+        startForeground(NOTIFICATION_ID, buildNotification());
+        lifecycle = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "worker-lifecycle");
+            }
+        });
+        lifecycle.execute(new Runnable() {
+            @Override
+            public void run() {
+                startEngine();
+            }
+        });
+    }
+
+    // the component and the database are created here on first use. a service without an engine
+    // only holds the foreground, it stops instead
+    private void startEngine() {
+        try {
+            ((MqttApp) getApplication()).getMqttComponent().inject(this);
+            dbHelper = new JobDBHelper(getApplicationContext());
+            jobExecutionService = new JobExecutionService(this, client, httpClient, dbHelper, eventLog);
+        } catch (MqttException | RuntimeException e) {
+            Timber.e("======================= could not start the job engine: %s", e);
+            eventLog.add(EventLog.TYPE_ERROR, "could not start the job engine: " + e);
+            stopForeground(true);
+            stopSelf();
+        }
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        if (intent != null && ACTION_STOP.equals(intent.getAction()))
+            stop();
+        // restarted after the process was killed, the engine then resumes the persisted jobs
+        return START_STICKY;
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return binder;
+    }
+
+    @Override
+    public void onDestroy() {
+        stop();
+        super.onDestroy();
+    }
+
+    // lets the running jobs finish, then leaves the foreground and stops. it runs after the engine
+    // was built, also when the stop comes while it is still starting.
+    private void stop() {
+        if (stopping)
+            return;
+        stopping = true;
+        lifecycle.execute(new Runnable() {
+            @Override
+            public void run() {
+                stopEngine();
+            }
+        });
+        lifecycle.shutdown();
+    }
+
+    private void stopEngine() {
+        if (jobExecutionService == null) {
+            stopSelf();
+            return;
+        }
+        try {
+            jobExecutionService.terminate(new Runnable() {
+                @Override
+                public void run() {
+                    stopForeground(true);
+                    stopSelf();
+                }
+            });
+        } catch (MqttException e) {
+            eventLog.add(EventLog.TYPE_ERROR, e.getMessage());
+            stopSelf();
+        }
+    }
+
+    private Notification buildNotification() {
+        Notification.Builder builder;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            NotificationChannel channel = new NotificationChannel(CHANNEL_ID,
+                    getString(R.string.worker_channel_name), NotificationManager.IMPORTANCE_LOW);
+            ((NotificationManager) getSystemService(NOTIFICATION_SERVICE)).createNotificationChannel(channel);
+            builder = new Notification.Builder(this, CHANNEL_ID);
+        } else {
+            builder = new Notification.Builder(this);
+        }
+        int flags = Build.VERSION.SDK_INT >= Build.VERSION_CODES.M ? PendingIntent.FLAG_IMMUTABLE : 0;
+        PendingIntent open = PendingIntent.getActivity(this, 0,
+                new Intent(this, DashBoardActivity.class), flags);
+        builder.setSmallIcon(R.mipmap.ic_launcher)
+                .setContentTitle(getString(R.string.app_name))
+                .setContentText(getString(R.string.worker_notification_text))
+                .setContentIntent(open)
+                .setOngoing(true);
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN)
+            return builder.getNotification();
+        PendingIntent stop = PendingIntent.getService(this, 0,
+                new Intent(this, WorkerService.class).setAction(ACTION_STOP), flags);
+        builder.addAction(0, getString(R.string.worker_stop), stop);
+        return builder.build();
+    }
+}
@@ -0,0 +1,102 @@
+package utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+// queues items and hands them to a sink on a background thread, one call per batch, so a producer
+// never waits for the sink. a batch is written once it is full or its oldest item waited
+// flushInterval milliseconds.
+public class BatchWriter<T> {
+
+    public interface Sink<T> {
+        // called on the writer thread, or on the producer's thread after close()
+        void write(List<T> batch);
+    }
+
+    // tells the writer thread to flush and stop
+    private static final Object STOP = new Object();
+
+    private final Sink<T> sink;
+    private final int batchSize;
+    private final long flushInterval;
+    private final LatencyHistogram writeLatency;
+    private final LinkedBlockingQueue<Object> queue = new LinkedBlockingQueue<>();
+    private final Thread writer;
+    private volatile boolean closed = false;
+
+    // writeLatency receives the duration of every sink call
+    public BatchWriter(Sink<T> sink, int batchSize, long flushInterval, LatencyHistogram writeLatency,
+                       ThreadFactory threadFactory) {
+        this.sink = sink;
+        this.batchSize = Math.max(1, batchSize);
+        this.flushInterval = flushInterval;
+        this.writeLatency = writeLatency;
+        writer = threadFactory.newThread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    loop();
+                } catch (InterruptedException e) {
+                    // the queued items are lost, close() reports it
+                }
+            }
+        });
+        writer.start();
+    }
+
+    public void add(T item) {
+        if (closed) {
+            // late items of a producer that outlived the drain are still worth keeping
+            List<T> batch = new ArrayList<>(1);
+            batch.add(item);
+            write(batch);
+            return;
+        }
+        queue.add(item);
+    }
+
+    // number of items waiting for the writer thread
+    public int pending() {
+        return queue.size();
+    }
+
+    // writes the queued items and stops the writer thread, false if it did not finish in time
+    public boolean close(long timeoutMillis) throws InterruptedException {
+        closed = true;
+        queue.add(STOP);
+        writer.join(timeoutMillis);
+        return !writer.isAlive();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void loop() throws InterruptedException {
+        List<T> batch = new ArrayList<>(batchSize);
+        boolean stop = false;
+        while (!stop) {
+            Object item = queue.take();
+            long deadline = System.currentTimeMillis() + flushInterval;
+            while (item != STOP) {
+                batch.add((T) item);
+                if (batch.size() >= batchSize)
+                    break;
+                long remaining = deadline - System.currentTimeMillis();
+                item = remaining > 0 ? queue.poll(remaining, TimeUnit.MILLISECONDS) : null;
+                if (item == null)
+                    break;
+            }
+            stop = item == STOP;
+            if (!batch.isEmpty())
+                write(batch);
+            batch.clear();
+        }
+    }
+
+    private void write(List<T> batch) {
+        long s = System.nanoTime();
+        sink.write(batch);
+        writeLatency.record(System.nanoTime() - s);
+    }
+}
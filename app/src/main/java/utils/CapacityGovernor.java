@@ -0,0 +1,178 @@
+package utils;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.os.PowerManager;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import static com.nxtgizmo.androidmqttdemo.mqtt_app.AppConfig.GOVERNOR_INTERVAL;
+import static com.nxtgizmo.androidmqttdemo.mqtt_app.AppConfig.GOVERNOR_LOW_BATTERY;
+import static com.nxtgizmo.androidmqttdemo.mqtt_app.AppConfig.GOVERNOR_MAX_SLOWDOWN;
+import static com.nxtgizmo.androidmqttdemo.mqtt_app.AppConfig.GOVERNOR_MIN_BATTERY;
+
+// decides how many execution slots the device offers. fewer jobs at full clock speed finish sooner
+// than many on a throttled cpu, so slots are taken away when the battery runs low, the device heats
+// up or fractions of the same job start to take longer than the first ones did, and given back
+// one at a time once that passes. 0 slots means the device should not receive jobs at all.
+public class CapacityGovernor {
+
+    public interface Listener {
+        // called on the governor thread
+        void onCapacityChanged(int slots, String reason);
+    }
+
+    // how many recent jobs the execution time baselines are kept for
+    private static final int TRACKED_JOBS = 16;
+    // weight of the newest execution time in the moving average
+    private static final double EWMA_WEIGHT = 0.3;
+
+    private final Context context;
+    private final int maxSlots;
+    private final Listener listener;
+    private final ScheduledThreadPoolExecutor executor;
+    // job id -> {fastest execution time, moving average of the execution time}
+    private final Map<String, double[]> executionTimes = new LinkedHashMap<String, double[]>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, double[]> eldest) {
+            return size() > TRACKED_JOBS;
+        }
+    };
+    // percent the last executed job was slower than the fastest fraction of its job
+    private int slowdown = 100;
+    private int throughputSlots;
+    private long lastThroughputChange = 0;
+    private int slots;
+    private String reason = "";
+
+    public CapacityGovernor(Context context, int maxSlots, Listener listener) {
+        this.context = context;
+        this.maxSlots = maxSlots;
+        this.listener = listener;
+        this.throughputSlots = maxSlots;
+        executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "job-governor");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        evaluate(false);
+    }
+
+    public void start() {
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                evaluate(true);
+            }
+        }, GOVERNOR_INTERVAL, GOVERNOR_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        executor.shutdownNow();
+    }
+
+    public synchronized int getSlots() {
+        return slots;
+    }
+
+    public synchronized String getReason() {
+        return reason;
+    }
+
+    // consumedTime in milliseconds, negative if the job failed
+    public void onJobExecuted(String jobId, long consumedTime) {
+        if (consumedTime <= 0)
+            return;
+        synchronized (this) {
+            double[] times = executionTimes.get(jobId);
+            if (times == null) {
+                executionTimes.put(jobId, new double[]{consumedTime, consumedTime});
+                slowdown = 100;
+            } else {
+                times[0] = Math.min(times[0], consumedTime);
+                times[1] = EWMA_WEIGHT * consumedTime + (1 - EWMA_WEIGHT) * times[1];
+                slowdown = (int) (times[1] * 100 / times[0]);
+            }
+        }
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    evaluate(true);
+                }
+            });
+        } catch (RuntimeException e) {
+            // stopped
+        }
+    }
+
+    private void evaluate(boolean notify) {
+        int newSlots = maxSlots;
+        String newReason = "full capacity";
+
+        Intent battery = context.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        if (battery != null) {
+            int level = battery.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+            int scale = battery.getIntExtra(BatteryManager.EXTRA_SCALE, 100);
+            boolean charging = battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+            int percent = level >= 0 && scale > 0 ? level * 100 / scale : 100;
+            if (!charging && percent < GOVERNOR_MIN_BATTERY) {
+                newSlots = 0;
+                newReason = "battery at " + percent + "%";
+            } else if (!charging && percent < GOVERNOR_LOW_BATTERY && newSlots > (maxSlots + 1) / 2) {
+                newSlots = (maxSlots + 1) / 2;
+                newReason = "battery at " + percent + "%";
+            }
+        }
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            PowerManager powerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+            int thermal = powerManager.getCurrentThermalStatus();
+            int thermalSlots = maxSlots;
+            if (thermal >= PowerManager.THERMAL_STATUS_SEVERE)
+                thermalSlots = 0;
+            else if (thermal == PowerManager.THERMAL_STATUS_MODERATE)
+                thermalSlots = 1;
+            else if (thermal == PowerManager.THERMAL_STATUS_LIGHT)
+                thermalSlots = (maxSlots + 1) / 2;
+            if (thermalSlots < newSlots) {
+                newSlots = thermalSlots;
+                newReason = "thermal status " + thermal;
+            }
+        }
+
+        int oldSlots;
+        synchronized (this) {
+            // one slot per interval, so the effect of a change shows before the next one
+            long now = System.currentTimeMillis();
+            if (now - lastThroughputChange >= GOVERNOR_INTERVAL) {
+                if (slowdown > GOVERNOR_MAX_SLOWDOWN && throughputSlots > 1) {
+                    throughputSlots--;
+                    lastThroughputChange = now;
+                } else if (slowdown * 5 < GOVERNOR_MAX_SLOWDOWN * 4 && throughputSlots < maxSlots) {
+                    throughputSlots++;
+                    lastThroughputChange = now;
+                }
+            }
+            if (throughputSlots < newSlots) {
+                newSlots = throughputSlots;
+                newReason = "jobs run at " + slowdown + "% of their fastest time";
+            }
+            oldSlots = slots;
+            slots = newSlots;
+            reason = newReason;
+        }
+        if (notify && newSlots != oldSlots)
+            listener.onCapacityChanged(newSlots, newReason);
+    }
+}
@@ -0,0 +1,266 @@
+package utils;
+
+import android.os.Bundle;
+
+import com.nxtgizmo.androidmqttdemo.worker.JobProcessService;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import static com.nxtgizmo.androidmqttdemo.mqtt_app.AppConfig.APP_NAME;
+
+// merges the outputs of a batch with the combine entry point of its executable and uploads one
+// result for all fractions once the last of them is done. each output is folded into the running
+// result as soon as its fraction executed, so combining overlaps the remaining executions and at
+// most two outputs wait on disk. one thread at a time folds, outside the monitor; a fraction
+// that executes meanwhile leaves its output to that thread. a fraction that failed reports its
+// error on its own, an output that could not be merged is uploaded on its own.
+//
+// a combined result whose upload failed stays in its directory next to a manifest naming its
+// fractions, and is uploaded again when the jobs are resumed, like the output of a single job.
+public class Combiner {
+
+    private static final String MANIFEST = "manifest";
+    private static final String COMBINED = "_combined_";
+
+    private final JobExecutionService jobExecutionService;
+    private final File dir;
+    // fractions that did not execute or fail yet
+    private int remaining;
+    // executed outputs the folding thread has not taken yet
+    private final List<Job> waiting = new ArrayList<>();
+    private boolean folding = false;
+    // only the folding thread touches these
+    private final List<Job> combined = new ArrayList<>();
+    // the running result, null before the first output
+    private File result;
+    private int merges = 0;
+
+    // fractions is the number of jobs that will call done()
+    public Combiner(JobExecutionService jobExecutionService, Job first, int fractions) {
+        this.jobExecutionService = jobExecutionService;
+        this.remaining = fractions;
+        dir = new File(jobsDir(jobExecutionService), first.getJobId() + COMBINED + first.getFraction());
+    }
+
+    private Combiner(JobExecutionService jobExecutionService, File dir) {
+        this.jobExecutionService = jobExecutionService;
+        this.dir = dir;
+    }
+
+    // the combined results kept by an earlier run, as uploads to run. jobs maps job id + "/" +
+    // fraction to the resumed jobs, those whose output is in a kept result are taken out of it.
+    // a result of which a fraction is no longer pending is deleted.
+    public static List<Runnable> resumeKept(JobExecutionService jobExecutionService, Map<String, Job> jobs) {
+        List<Runnable> uploads = new ArrayList<>();
+        File[] dirs = jobsDir(jobExecutionService).listFiles();
+        if (dirs == null)
+            return uploads;
+        for (File d : dirs) {
+            if (!d.getName().contains(COMBINED))
+                continue;
+            Combiner kept = new Combiner(jobExecutionService, d);
+            Properties manifest = kept.readManifest();
+            File file = manifest != null ? new File(d, manifest.getProperty("result", "")) : null;
+            List<Job> covered = new ArrayList<>();
+            if (file != null && file.isFile()) {
+                for (String fraction : manifest.getProperty("fractions", "").split(",")) {
+                    Job job = jobs.get(manifest.getProperty("job_id") + "/" + fraction);
+                    if (job == null) {
+                        covered = null;
+                        break;
+                    }
+                    covered.add(job);
+                }
+            } else {
+                covered = null;
+            }
+            if (covered == null || covered.isEmpty()) {
+                kept.deleteDir();
+                continue;
+            }
+            for (Job job : covered)
+                jobs.remove(job.getJobId() + "/" + job.getFraction());
+            uploads.add(kept.uploadCombined(covered, file));
+        }
+        return uploads;
+    }
+
+    // called once per fraction after it executed or failed. returns what the upload stage should
+    // run for it, null if nothing
+    public Runnable done(Job job, boolean executed) {
+        synchronized (this) {
+            remaining--;
+            if (executed)
+                waiting.add(job);
+            if (folding)
+                return null;
+            folding = true;
+        }
+        final List<Runnable> uploads = new ArrayList<>();
+        while (true) {
+            Job next;
+            synchronized (this) {
+                if (waiting.isEmpty()) {
+                    folding = false;
+                    if (remaining == 0 && !combined.isEmpty())
+                        uploads.add(uploadCombined(new ArrayList<>(combined), result));
+                    break;
+                }
+                next = waiting.remove(0);
+            }
+            if (!fold(next))
+                uploads.add(uploadOf(next));
+        }
+        if (uploads.size() <= 1)
+            return uploads.isEmpty() ? null : uploads.get(0);
+        return new Runnable() {
+            @Override
+            public void run() {
+                for (Runnable upload : uploads)
+                    upload.run();
+            }
+        };
+    }
+
+    private boolean fold(Job job) {
+        try {
+            if (!dir.isDirectory() && !dir.mkdirs())
+                throw new IOException("could not create " + dir);
+            if (result == null) {
+                File output = new File(dir, "output");
+                if (!job.moveOutput(output))
+                    throw new IOException("could not move " + job.getOutputFilePath());
+                result = output;
+            } else {
+                File merged = new File(dir, "combined_" + (++merges));
+                long s = System.nanoTime();
+                combine(job.getExecutable(), new String[]{result.getPath(), job.getOutputFilePath()},
+                        merged.getPath());
+                jobExecutionService.getJobMetrics().recordSince(JobMetrics.COMBINE, s);
+                result.delete();
+                job.deleteOutput();
+                result = merged;
+            }
+            combined.add(job);
+            return true;
+        } catch (IOException | IllegalAccessException | InstantiationException |
+                InvocationTargetException e) {
+            jobExecutionService.onError("could not combine job %s fraction %s, uploading it alone >\n%s",
+                    job.getJobId(), job.getFraction(), String.valueOf(e.getCause() != null ? e.getCause() : e));
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    // runs in a job process like the executions, if there are any
+    private void combine(ExecutableCache.Executable executable, String[] inputs, String output)
+            throws IOException, InterruptedException, IllegalAccessException, InstantiationException,
+            InvocationTargetException {
+        JobProcessPool jobProcessPool = jobExecutionService.getJobProcessPool();
+        if (jobProcessPool == null) {
+            executable.getCombineMethod().invoke(executable.newInstance(), inputs, output);
+            return;
+        }
+        Bundle request = new Bundle();
+        request.putString(JobProcessService.KEY_EXECUTABLE_PATH, executable.getPath());
+        request.putStringArray(JobProcessService.KEY_COMBINE_INPUTS, inputs);
+        request.putString(JobProcessService.KEY_OUTPUT_PATH, output);
+        JobProcessPool.Result r = jobProcessPool.newCall().execute(request);
+        if (r.getError() != null)
+            throw new IOException(r.getError());
+    }
+
+    private static Runnable uploadOf(final Job job) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                job.upload();
+            }
+        };
+    }
+
+    private Runnable uploadCombined(final List<Job> jobs, final File file) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                Job first = jobs.get(0);
+                int[] fractions = new int[jobs.size()];
+                long consumedTime = 0;
+                for (int i = 0; i < fractions.length; i++) {
+                    fractions[i] = jobs.get(i).getFraction();
+                    consumedTime += jobs.get(i).getConsumedTime();
+                }
+                Arrays.sort(fractions);
+                jobExecutionService.onSuccess("combined %s fractions of job %s >\nsize: %s bytes",
+                        fractions.length, first.getJobId(), file.length());
+                long s = System.nanoTime();
+                long time = jobExecutionService.getResultUploader().upload(first.getJobId(), fractions,
+                        first.getAttempt(), jobExecutionService.getDeviceId(), file.getPath(), consumedTime);
+                jobExecutionService.getJobMetrics().recordSince(JobMetrics.UPLOAD, s);
+                if (time == -1) {
+                    keep(first.getJobId(), fractions, file);
+                    return;
+                }
+                for (Job job : jobs)
+                    job.completeCombined(time);
+                deleteDir();
+            }
+        };
+    }
+
+    private void keep(String jobId, int[] fractions, File file) {
+        Properties manifest = new Properties();
+        manifest.setProperty("job_id", jobId);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < fractions.length; i++)
+            sb.append(i > 0 ? "," : "").append(fractions[i]);
+        manifest.setProperty("fractions", sb.toString());
+        manifest.setProperty("result", file.getName());
+        try (OutputStream os = new FileOutputStream(new File(dir, MANIFEST))) {
+            manifest.store(os, null);
+            jobExecutionService.onError("kept the combined result of job %s fractions %s, it is uploaded " +
+                    "again once the jobs are resumed", jobId, sb);
+        } catch (IOException e) {
+            jobExecutionService.onError("could not keep the combined result of job %s >\n%s", jobId, e);
+            deleteDir();
+        }
+    }
+
+    private Properties readManifest() {
+        File f = new File(dir, MANIFEST);
+        if (!f.isFile())
+            return null;
+        Properties manifest = new Properties();
+        try (InputStream is = new FileInputStream(f)) {
+            manifest.load(is);
+            return manifest;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private void deleteDir() {
+        File[] files = dir.listFiles();
+        if (files != null)
+            for (File f : files)
+                f.delete();
+        dir.delete();
+    }
+
+    private static File jobsDir(JobExecutionService jobExecutionService) {
+        return new File(jobExecutionService.getCacheDir(), APP_NAME + "/jobs");
+    }
+}
@@ -0,0 +1,393 @@
+package utils;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Properties;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.ByteString;
+
+// downloads files and input slices through the shared http client. a finished file keeps its
+// validators in a .meta file next to it so later downloads can be revalidated with a conditional
+// request, and an interrupted download keeps its .part file so the next attempt resumes with a
+// range request.
+public class Downloader {
+
+    public static class Result {
+        private final File file;
+        private final long transferredBytes;
+        private final boolean notModified;
+
+        private Result(File file, long transferredBytes, boolean notModified) {
+            this.file = file;
+            this.transferredBytes = transferredBytes;
+            this.notModified = notModified;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public long getTransferredBytes() {
+            return transferredBytes;
+        }
+
+        public boolean isNotModified() {
+            return notModified;
+        }
+    }
+
+    public static class Slice implements Closeable {
+        private final Response response;
+        private final CountingInputStream inputStream;
+        private final long start;
+        private final long end;
+
+        private Slice(Response response, CountingInputStream inputStream, long start, long end) {
+            this.response = response;
+            this.inputStream = inputStream;
+            this.start = start;
+            this.end = end;
+        }
+
+        public InputStream getInputStream() {
+            return inputStream;
+        }
+
+        // offset of the first byte of the stream within the whole input
+        public long getStart() {
+            return start;
+        }
+
+        // offset the fraction ends at, -1 if the server did not tell the input length
+        public long getEnd() {
+            return end;
+        }
+
+        public long getTransferredBytes() {
+            return inputStream.count;
+        }
+
+        @Override
+        public void close() {
+            response.close();
+        }
+    }
+
+    public static final String PART_SUFFIX = ".part";
+    public static final String META_SUFFIX = ".meta";
+    private static final String ETAG = "etag";
+    private static final String LAST_MODIFIED = "last_modified";
+    private static final String SHA_256 = "sha256";
+
+    private final EventSink events;
+    private final OkHttpClient client;
+    private final int maxAttempts;
+    private final long retryDelay;
+
+    // retryDelay in milliseconds, doubled after every failed attempt
+    public Downloader(EventSink events, OkHttpClient client, int maxAttempts, long retryDelay) {
+        this.events = events;
+        this.client = client;
+        this.maxAttempts = maxAttempts;
+        this.retryDelay = retryDelay;
+    }
+
+    // expectedSha256 is optional; without it the checksum announced by the server, if any, is used
+    public Result download(String url, File target, String expectedSha256) throws IOException {
+        IOException last = null;
+        long delay = retryDelay;
+        for (int attempt = 1; attempt <= maxAttempts; attempt++) {
+            try {
+                return attempt(url, target, expectedSha256);
+            } catch (IOException e) {
+                last = e;
+                events.onError("download attempt %s of %s failed >\nfile: %s\nerror: %s",
+                        attempt, maxAttempts, url, e.getMessage());
+                if (attempt == maxAttempts)
+                    break;
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                delay *= 2;
+            }
+        }
+        throw last != null ? last : new IOException("could not download " + url);
+    }
+
+    private Result attempt(String url, File target, String expectedSha256) throws IOException {
+        long s = System.currentTimeMillis();
+        File part = new File(target.getPath() + PART_SUFFIX);
+        Properties meta = readMeta(target);
+        Properties partMeta = readMeta(part);
+
+        Request.Builder builder = new Request.Builder().url(url);
+        long offset = 0;
+        if (part.exists() && part.length() > 0 && validator(partMeta) != null) {
+            offset = part.length();
+            builder.header("Range", "bytes=" + offset + "-")
+                    .header("If-Range", validator(partMeta));
+        } else if (target.exists() && meta != null) {
+            if (meta.getProperty(ETAG) != null)
+                builder.header("If-None-Match", meta.getProperty(ETAG));
+            if (meta.getProperty(LAST_MODIFIED) != null)
+                builder.header("If-Modified-Since", meta.getProperty(LAST_MODIFIED));
+        }
+
+        try (Response response = client.newCall(builder.build()).execute()) {
+            int code = response.code();
+            if (code == 304) {
+                events.onSuccess("download status >\nfile: %s\nnot modified", url);
+                return new Result(target, 0, true);
+            }
+            if (code == 416) {
+                // the part no longer matches the remote file
+                deleteWithMeta(part);
+                throw new IOException("range not satisfiable for " + url);
+            }
+            if (code != 200 && code != 206)
+                throw new IOException(String.format("unexpected status %s for %s", code, url));
+
+            boolean append = code == 206;
+            if (!append)
+                offset = 0;
+            Properties validators = new Properties();
+            putIfNotNull(validators, ETAG, response.header("ETag"));
+            putIfNotNull(validators, LAST_MODIFIED, response.header("Last-Modified"));
+            writeMeta(part, validators);
+
+            MessageDigest digest = sha256();
+            if (append)
+                digestFile(part, digest);
+            ResponseBody body = response.body();
+            if (body == null)
+                throw new IOException("empty body for " + url);
+            long transferred = copy(body.byteStream(), new FileOutputStream(part, append), digest);
+
+            String actual = toHex(digest.digest());
+            String expected = expectedSha256 != null ? expectedSha256 : announcedSha256(response);
+            if (expected != null && !expected.equalsIgnoreCase(actual)) {
+                deleteWithMeta(part);
+                throw new IOException(String.format("checksum mismatch for %s >\nexpected: %s\nactual: %s",
+                        url, expected, actual));
+            }
+
+            if (target.exists() && !target.delete())
+                throw new IOException("could not replace " + target);
+            if (!part.renameTo(target))
+                throw new IOException("could not move " + part + " to " + target);
+            new File(part.getPath() + META_SUFFIX).delete();
+            validators.setProperty(SHA_256, actual);
+            writeMeta(target, validators);
+
+            long e = System.currentTimeMillis();
+            events.onSuccess("download status >\nfile: %s\nresumed at: %s bytes\ntime: %s milliseconds",
+                    url, offset, (e - s));
+            return new Result(target, transferred, false);
+        }
+    }
+
+    // opens the input at the first byte of the given fraction, counting fractions from 0. the
+    // stream is open ended so the executable can finish a record crossing its end offset, and
+    // only what it actually reads is transferred.
+    public Slice openSlice(String url, int fraction, int totalFractions) throws IOException {
+        long length = -1;
+        boolean ranges = false;
+        Request head = new Request.Builder().url(url).head().build();
+        try (Response response = client.newCall(head).execute()) {
+            String contentLength = response.header("Content-Length");
+            if (response.isSuccessful() && contentLength != null) {
+                try {
+                    length = Long.parseLong(contentLength);
+                } catch (NumberFormatException e) {
+                    length = -1;
+                }
+                ranges = "bytes".equalsIgnoreCase(response.header("Accept-Ranges"));
+            }
+        }
+
+        long start = 0;
+        long end = length;
+        if (length >= 0 && totalFractions > 0) {
+            start = length * fraction / totalFractions;
+            end = length * (fraction + 1) / totalFractions;
+        }
+        Request.Builder builder = new Request.Builder().url(url);
+        if (ranges && start > 0)
+            builder.header("Range", "bytes=" + start + "-");
+        Response response = client.newCall(builder.build()).execute();
+        ResponseBody body = response.body();
+        if ((response.code() != 200 && response.code() != 206) || body == null) {
+            response.close();
+            throw new IOException(String.format("unexpected status %s for %s", response.code(), url));
+        }
+        CountingInputStream is = new CountingInputStream(body.byteStream());
+        try {
+            // the server ignored the range, so drop what belongs to earlier fractions
+            if (response.code() == 200 && start > 0)
+                skipFully(is, start);
+        } catch (IOException e) {
+            response.close();
+            throw e;
+        }
+        events.onSuccess("streaming input >\nfile: %s\nrange: %s-%s of %s bytes", url, start, end, length);
+        return new Slice(response, is, start, end);
+    }
+
+    private static void skipFully(InputStream is, long n) throws IOException {
+        while (n > 0) {
+            long skipped = is.skip(n);
+            if (skipped <= 0) {
+                if (is.read() == -1)
+                    throw new EOFException();
+                skipped = 1;
+            }
+            n -= skipped;
+        }
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+        private volatile long count = 0;
+
+        private CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1)
+                count++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0)
+                count += n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+
+    public static void deleteWithMeta(File f) {
+        f.delete();
+        new File(f.getPath() + META_SUFFIX).delete();
+    }
+
+    private static long copy(InputStream is, OutputStream os, MessageDigest digest) throws IOException {
+        long acc = 0;
+        try {
+            byte[] baf = new byte[64 * 1024];
+            int current;
+            while ((current = is.read(baf, 0, baf.length)) != -1) {
+                os.write(baf, 0, current);
+                digest.update(baf, 0, current);
+                acc += current;
+            }
+            os.flush();
+        } finally {
+            os.close();
+            is.close();
+        }
+        return acc;
+    }
+
+    // hex sha-256 of the file
+    public static String sha256(File f) throws IOException {
+        MessageDigest digest = sha256();
+        digestFile(f, digest);
+        return toHex(digest.digest());
+    }
+
+    private static void digestFile(File f, MessageDigest digest) throws IOException {
+        try (InputStream is = new FileInputStream(f)) {
+            byte[] baf = new byte[64 * 1024];
+            int current;
+            while ((current = is.read(baf, 0, baf.length)) != -1)
+                digest.update(baf, 0, current);
+        }
+    }
+
+    // understands the rfc 3230 "Digest: SHA-256=<base64>" header
+    private static String announcedSha256(Response response) {
+        String digest = response.header("Digest");
+        if (digest == null)
+            return null;
+        for (String d : digest.split(",")) {
+            d = d.trim();
+            if (d.regionMatches(true, 0, "SHA-256=", 0, 8)) {
+                ByteString sha256 = ByteString.decodeBase64(d.substring(8));
+                return sha256 != null ? sha256.hex() : null;
+            }
+        }
+        return null;
+    }
+
+    private static String validator(Properties meta) {
+        if (meta == null)
+            return null;
+        return meta.getProperty(ETAG) != null ? meta.getProperty(ETAG) : meta.getProperty(LAST_MODIFIED);
+    }
+
+    private static Properties readMeta(File f) {
+        File metaFile = new File(f.getPath() + META_SUFFIX);
+        if (!metaFile.exists())
+            return null;
+        Properties p = new Properties();
+        try (InputStream is = new FileInputStream(metaFile)) {
+            p.load(is);
+            return p;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static void writeMeta(File f, Properties p) throws IOException {
+        try (OutputStream os = new FileOutputStream(f.getPath() + META_SUFFIX)) {
+            p.store(os, null);
+        }
+    }
+
+    private static void putIfNotNull(Properties p, String key, String value) {
+        if (value != null)
+            p.setProperty(key, value);
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes)
+            sb.append(String.format("%02x", b));
+        return sb.toString();
+    }
+}
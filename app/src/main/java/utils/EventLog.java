@@ -0,0 +1,92 @@
+package utils;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+// keeps the last capacity events in a ring buffer. events hold their format and arguments and are
+// only formatted once someone displays them, so reporting from the job threads stays cheap and the
+// memory of a long session stays bounded.
+public class EventLog {
+
+    public static final int TYPE_SUCCESS = 0;
+    public static final int TYPE_ERROR = 1;
+
+    public static class Event {
+        private final long time;
+        private final int type;
+        private final String thread;
+        private final String format;
+        private final Object[] args;
+        private String message;
+
+        private Event(int type, String format, Object[] args) {
+            this.time = System.currentTimeMillis();
+            this.type = type;
+            this.thread = Thread.currentThread().getName();
+            this.format = format;
+            this.args = args;
+        }
+
+        // milliseconds since the epoch
+        public long getTime() {
+            return time;
+        }
+
+        public int getType() {
+            return type;
+        }
+
+        public String getThread() {
+            return thread;
+        }
+
+        public synchronized String getMessage() {
+            if (message == null) {
+                // without arguments the format is the message itself and may contain a literal %
+                message = args == null || args.length == 0 ? String.valueOf(format) :
+                        String.format(Locale.US, format, args);
+            }
+            return message;
+        }
+
+        @Override
+        public String toString() {
+            return new SimpleDateFormat("HH:mm:ss.SSS", Locale.US).format(new Date(time)) +
+                    " [" + thread + "] " + getMessage();
+        }
+    }
+
+    private final Event[] events;
+    private int next = 0;
+    private int size = 0;
+    private long version = 0;
+
+    public EventLog(int capacity) {
+        events = new Event[Math.max(1, capacity)];
+    }
+
+    public synchronized void add(int type, String format, Object... args) {
+        events[next] = new Event(type, format, args);
+        next = (next + 1) % events.length;
+        if (size < events.length)
+            size++;
+        version++;
+    }
+
+    // changes whenever an event is added
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    // oldest first
+    public synchronized List<Event> snapshot() {
+        List<Event> list = new ArrayList<>(size);
+        int first = (next - size + events.length) % events.length;
+        for (int i = 0; i < size; i++)
+            list.add(events[(first + i) % events.length]);
+        return list;
+    }
+}
@@ -0,0 +1,10 @@
+package utils;
+
+// where the pipeline classes report what they do. the job execution service shows it in the event
+// log, benchmarks on a plain jvm can discard it.
+public interface EventSink {
+
+    void onSuccess(String format, Object... args);
+
+    void onError(String format, Object... args);
+}
@@ -0,0 +1,295 @@
+package utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import dalvik.system.DexClassLoader;
+
+import static com.nxtgizmo.androidmqttdemo.mqtt_app.AppConfig.APP_NAME;
+import static com.nxtgizmo.androidmqttdemo.mqtt_app.AppConfig.EXECUTABLE_CACHE_MAX_BYTES;
+import static com.nxtgizmo.androidmqttdemo.mqtt_app.AppConfig.EXECUTABLE_COMBINE_METHOD_NAME;
+import static com.nxtgizmo.androidmqttdemo.mqtt_app.AppConfig.EXECUTABLE_JOB_CLASS;
+import static com.nxtgizmo.androidmqttdemo.mqtt_app.AppConfig.EXECUTABLE_START_METHOD_NAME;
+import static com.nxtgizmo.androidmqttdemo.mqtt_app.AppConfig.EXECUTABLE_STREAM_START_METHOD_NAME;
+import static com.nxtgizmo.androidmqttdemo.mqtt_app.AppConfig.OUTPUT_MAP_SIZE;
+
+// keeps downloaded executables on disk and their loaded job class in memory, so fractions of the
+// same job skip the download and the dex optimization. files are named after the sha-256 of the
+// executable, or of its url when the job message carries no checksum. when first used after a
+// restart a file named after its content is verified on the device, one named after its url is
+// revalidated with the server and used as it is if the server cannot be reached. files are evicted
+// least recently used first once they exceed the byte budget.
+public class ExecutableCache {
+
+    public static class Executable {
+        private final Class<?> jobClass;
+        private final Method start;
+        private final Method streamStart;
+        private final Method combine;
+        private final long size;
+        private final long downloadTime;
+        private final String path;
+
+        private Executable(Class<?> jobClass, Method start, Method streamStart, Method combine, long size,
+                           long downloadTime, String path) {
+            this.jobClass = jobClass;
+            this.start = start;
+            this.streamStart = streamStart;
+            this.combine = combine;
+            this.size = size;
+            this.downloadTime = downloadTime;
+            this.path = path;
+        }
+
+        public Object newInstance() throws IllegalAccessException, InstantiationException {
+            return jobClass.newInstance();
+        }
+
+        public Class<?> getJobClass() {
+            return jobClass;
+        }
+
+        // null if the executable only has the streaming entry point
+        public Method getStartMethod() {
+            return start;
+        }
+
+        // null if the executable only accepts an input url
+        public Method getStreamStartMethod() {
+            return streamStart;
+        }
+
+        // null if the outputs of the executable cannot be combined on the device
+        public Method getCombineMethod() {
+            return combine;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        // milliseconds spent downloading for this lookup, 0 if it was served from the cache
+        public long getDownloadTime() {
+            return downloadTime;
+        }
+
+        // the dex file on disk, for job processes to load it themselves
+        public String getPath() {
+            return path;
+        }
+    }
+
+    private final JobExecutionService jobExecutionService;
+    private final Downloader downloader;
+    private final File dir;
+    private final long maxBytes;
+    // key -> size on disk, in access order
+    private final LinkedHashMap<String, Long> files = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, File> paths = new HashMap<>();
+    private final Map<String, Executable> loaded = new HashMap<>();
+    private final Map<String, Object> locks = new HashMap<>();
+    private long totalBytes = 0;
+
+    public ExecutableCache(JobExecutionService jobExecutionService, Downloader downloader) {
+        this.jobExecutionService = jobExecutionService;
+        this.downloader = downloader;
+        this.maxBytes = EXECUTABLE_CACHE_MAX_BYTES;
+        dir = new File(jobExecutionService.getCacheDir(), APP_NAME + "/executables");
+        if (!dir.exists() && !dir.mkdirs())
+            jobExecutionService.onError("could not create executable cache at " + dir);
+        index();
+    }
+
+    // with a known sha-256 the executable is cached under its content hash and verified after download
+    public Executable get(String executableURL, String executableFileName, String executableSha256)
+            throws IOException, ClassNotFoundException, NoSuchMethodException {
+        String key = executableSha256 != null ? executableSha256.toLowerCase(Locale.US) : key(executableURL);
+        synchronized (lockFor(key)) {
+            Executable executable;
+            synchronized (this) {
+                executable = loaded.get(key);
+                if (executable != null) {
+                    files.get(key); // touch
+                    return new Executable(executable.jobClass, executable.start, executable.streamStart,
+                            executable.combine, executable.size, 0, executable.path);
+                }
+            }
+
+            File f;
+            synchronized (this) {
+                f = paths.get(key);
+            }
+            if (f == null)
+                f = new File(dir, key + "-" + executableFileName);
+            // a file left by an earlier run is checked, one loaded in this run is trusted
+            JobMetrics jobMetrics = jobExecutionService.getJobMetrics();
+            long downloadNanos = 0;
+            if (executableSha256 != null && f.exists() && key.equals(Downloader.sha256(f))) {
+                jobExecutionService.onSuccess("executable cache hit >\n%s", executableFileName);
+            } else {
+                if (executableSha256 != null)
+                    Downloader.deleteWithMeta(f);
+                long s = System.nanoTime();
+                try {
+                    Downloader.Result result = downloader.download(executableURL, f, executableSha256);
+                    if (result.isNotModified())
+                        jobExecutionService.onSuccess("executable cache hit >\n%s", executableFileName);
+                } catch (IOException e) {
+                    if (!f.exists())
+                        throw e;
+                    jobExecutionService.onError("could not revalidate %s, using the cached copy >\n%s",
+                            executableFileName, e.getMessage());
+                }
+                downloadNanos = System.nanoTime() - s;
+                jobMetrics.record(JobMetrics.DOWNLOAD, downloadNanos);
+            }
+            f.setReadOnly();
+            synchronized (this) {
+                add(key, f);
+            }
+
+            long s = System.nanoTime();
+            DexClassLoader classLoader = new DexClassLoader(f.getAbsolutePath(),
+                    dir.getAbsolutePath(), null, ExecutableCache.class.getClassLoader());
+            Class<?> c = classLoader.loadClass(EXECUTABLE_JOB_CLASS);
+            Method start = findStartMethod(c);
+            Method streamStart = findStreamStartMethod(c);
+            if (start == null && streamStart == null)
+                throw new NoSuchMethodException(String.format("%s has neither %s nor %s",
+                        EXECUTABLE_JOB_CLASS, EXECUTABLE_START_METHOD_NAME,
+                        EXECUTABLE_STREAM_START_METHOD_NAME));
+            jobMetrics.recordSince(JobMetrics.DEX_LOAD, s);
+            executable = new Executable(c, start, streamStart, findCombineMethod(c), f.length(),
+                    downloadNanos / 1000000, f.getAbsolutePath());
+            synchronized (this) {
+                if (files.containsKey(key))
+                    loaded.put(key, executable);
+            }
+            return executable;
+        }
+    }
+
+    private void add(String key, File f) {
+        Long old = files.put(key, f.length());
+        if (old != null)
+            totalBytes -= old;
+        totalBytes += f.length();
+        paths.put(key, f);
+        evict(key);
+    }
+
+    private void evict(String keep) {
+        Iterator<Map.Entry<String, Long>> it = files.entrySet().iterator();
+        while (totalBytes > maxBytes && it.hasNext()) {
+            Map.Entry<String, Long> eldest = it.next();
+            String key = eldest.getKey();
+            if (key.equals(keep))
+                continue;
+            it.remove();
+            totalBytes -= eldest.getValue();
+            loaded.remove(key);
+            File f = paths.remove(key);
+            if (f != null) {
+                Downloader.deleteWithMeta(f);
+                jobExecutionService.onSuccess("evicted executable >\n%s", f.getName());
+            }
+        }
+    }
+
+    // rebuilds the lru order from what a previous run left on disk
+    private synchronized void index() {
+        File[] existing = dir.listFiles();
+        if (existing == null)
+            return;
+        Arrays.sort(existing, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long d = a.lastModified() - b.lastModified();
+                return d < 0 ? -1 : (d > 0 ? 1 : 0);
+            }
+        });
+        for (File f : existing) {
+            String name = f.getName();
+            int dash = name.indexOf('-');
+            // unfinished downloads stay around so they can be resumed
+            if (!f.isFile() || dash <= 0 || name.endsWith(Downloader.PART_SUFFIX) ||
+                    name.endsWith(Downloader.META_SUFFIX))
+                continue;
+            String key = name.substring(0, dash);
+            files.put(key, f.length());
+            paths.put(key, f);
+            totalBytes += f.length();
+        }
+        evict(null);
+    }
+
+    private synchronized Object lockFor(String key) {
+        Object lock = locks.get(key);
+        if (lock == null) {
+            lock = new Object();
+            locks.put(key, lock);
+        }
+        return lock;
+    }
+
+    // start(String inputURL, WritableByteChannel output, int fraction, int totalFractions), or with
+    // a String outputPath in place of the channel, null if absent. the channel variant is preferred.
+    public static Method findStartMethod(Class<?> c) {
+        Method m = findMethod(c, EXECUTABLE_START_METHOD_NAME,
+                String.class, WritableByteChannel.class, int.class, int.class);
+        return m != null ? m : findMethod(c, EXECUTABLE_START_METHOD_NAME,
+                String.class, String.class, int.class, int.class);
+    }
+
+    // startStream(InputStream input, long start, long end, WritableByteChannel output, int fraction,
+    // int totalFractions), or with a String outputPath in place of the channel, null if absent
+    public static Method findStreamStartMethod(Class<?> c) {
+        Method m = findMethod(c, EXECUTABLE_STREAM_START_METHOD_NAME,
+                InputStream.class, long.class, long.class, WritableByteChannel.class, int.class, int.class);
+        return m != null ? m : findMethod(c, EXECUTABLE_STREAM_START_METHOD_NAME,
+                InputStream.class, long.class, long.class, String.class, int.class, int.class);
+    }
+
+    // the output channel to hand an entry point found above, null if it takes the output path
+    public static OutputChannel openOutput(Method entryPoint, String outputPath) throws IOException {
+        for (Class<?> type : entryPoint.getParameterTypes()) {
+            if (type == WritableByteChannel.class)
+                return new OutputChannel(new File(outputPath), OUTPUT_MAP_SIZE);
+        }
+        return null;
+    }
+
+    // combine(String[] inputPaths, String outputPath), merges outputs of the executable into one,
+    // null if absent
+    public static Method findCombineMethod(Class<?> c) {
+        return findMethod(c, EXECUTABLE_COMBINE_METHOD_NAME, String[].class, String.class);
+    }
+
+    private static Method findMethod(Class<?> c, String name, Class<?>... parameterTypes) {
+        try {
+            return c.getMethod(name, parameterTypes);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    private static String key(String executableURL) {
+        try {
+            return Downloader.toHex(MessageDigest.getInstance("SHA-256").digest(executableURL.getBytes("UTF-8")));
+        } catch (NoSuchAlgorithmException | IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
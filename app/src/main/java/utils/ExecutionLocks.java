@@ -0,0 +1,50 @@
+package utils;
+
+import android.content.Context;
+import android.net.wifi.WifiManager;
+import android.os.PowerManager;
+
+import static com.nxtgizmo.androidmqttdemo.mqtt_app.AppConfig.APP_NAME;
+
+// keeps the cpu and the wifi radio awake while at least one job is fetched, executed or uploaded,
+// and lets the device sleep as soon as the last one is done
+public class ExecutionLocks {
+
+    private final PowerManager.WakeLock wakeLock;
+    private final WifiManager.WifiLock wifiLock;
+    private int holders = 0;
+
+    public ExecutionLocks(Context context) {
+        PowerManager powerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        wakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, APP_NAME + ":jobs");
+        wakeLock.setReferenceCounted(false);
+        WifiManager wifiManager = (WifiManager) context.getApplicationContext()
+                .getSystemService(Context.WIFI_SERVICE);
+        wifiLock = wifiManager.createWifiLock(WifiManager.WIFI_MODE_FULL_HIGH_PERF, APP_NAME + ":jobs");
+        wifiLock.setReferenceCounted(false);
+    }
+
+    public synchronized void acquire() {
+        if (holders++ == 0) {
+            wakeLock.acquire();
+            wifiLock.acquire();
+        }
+    }
+
+    public synchronized void release() {
+        if (holders > 0 && --holders == 0)
+            releaseLocks();
+    }
+
+    public synchronized void releaseAll() {
+        holders = 0;
+        releaseLocks();
+    }
+
+    private void releaseLocks() {
+        if (wifiLock.isHeld())
+            wifiLock.release();
+        if (wakeLock.isHeld())
+            wakeLock.release();
+    }
+}
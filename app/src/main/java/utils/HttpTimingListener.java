@@ -0,0 +1,96 @@
+package utils;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+
+import okhttp3.Call;
+import okhttp3.EventListener;
+import okhttp3.Handshake;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import timber.log.Timber;
+
+// measures connect, tls handshake and time to first byte of every call made by the shared client.
+// a call that reuses a pooled connection reports no connect and tls time.
+public class HttpTimingListener extends EventListener {
+
+    public static final Factory FACTORY = new Factory() {
+        @Override
+        public EventListener create(Call call) {
+            return new HttpTimingListener();
+        }
+    };
+
+    private long callStart;
+    private long connectStart = -1;
+    private long connectTime = 0;
+    private long secureConnectStart = -1;
+    private long tlsTime = 0;
+    private long requestSent = -1;
+    private long ttfb = -1;
+    private Protocol protocol;
+
+    @Override
+    public void callStart(Call call) {
+        callStart = System.nanoTime();
+    }
+
+    @Override
+    public void connectStart(Call call, InetSocketAddress inetSocketAddress, Proxy proxy) {
+        connectStart = System.nanoTime();
+    }
+
+    @Override
+    public void secureConnectStart(Call call) {
+        secureConnectStart = System.nanoTime();
+    }
+
+    @Override
+    public void secureConnectEnd(Call call, Handshake handshake) {
+        tlsTime = System.nanoTime() - secureConnectStart;
+    }
+
+    @Override
+    public void connectEnd(Call call, InetSocketAddress inetSocketAddress, Proxy proxy, Protocol protocol) {
+        connectTime = System.nanoTime() - connectStart;
+        this.protocol = protocol;
+    }
+
+    @Override
+    public void requestHeadersEnd(Call call, Request request) {
+        requestSent = System.nanoTime();
+    }
+
+    @Override
+    public void requestBodyEnd(Call call, long byteCount) {
+        requestSent = System.nanoTime();
+    }
+
+    @Override
+    public void responseHeadersStart(Call call) {
+        if (requestSent != -1)
+            ttfb = System.nanoTime() - requestSent;
+    }
+
+    @Override
+    public void callEnd(Call call) {
+        log(call, "done");
+    }
+
+    @Override
+    public void callFailed(Call call, IOException ioe) {
+        log(call, "failed: " + ioe.getMessage());
+    }
+
+    private void log(Call call, String status) {
+        Timber.d("http timings >\n%s %s\nstatus: %s\nnew connection: %s\nprotocol: %s\n" +
+                        "connect: %s ms\ntls: %s ms\nttfb: %s ms\ntotal: %s ms",
+                call.request().method(), call.request().url(), status, connectStart != -1, protocol,
+                millis(connectTime), millis(tlsTime), millis(ttfb), millis(System.nanoTime() - callStart));
+    }
+
+    private static double millis(long nanos) {
+        return nanos < 0 ? -1 : nanos / 1e6;
+    }
+}
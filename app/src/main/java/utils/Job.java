@@ -1,32 +1,26 @@
 package utils;
 
 import android.content.ContentValues;
-import android.database.sqlite.SQLiteDatabase;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+
+import com.nxtgizmo.androidmqttdemo.worker.JobProcessService;
 
-import java.io.BufferedInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
-import java.net.URL;
-import java.util.HashMap;
-
-import dalvik.system.DexClassLoader;
-import okhttp3.MediaType;
-import okhttp3.MultipartBody;
-import okhttp3.OkHttpClient;
-import okhttp3.Request;
-import okhttp3.RequestBody;
-import okhttp3.Response;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
 import utils.data.JobContract;
+import utils.data.JobQueueStore;
 
-import static com.nxtgizmo.androidmqttdemo.dashboard.DashBoardActivity.APP_NAME;
-import static com.nxtgizmo.androidmqttdemo.dashboard.DashBoardActivity.EXECUTABLE_JOB_CLASS;
-import static com.nxtgizmo.androidmqttdemo.dashboard.DashBoardActivity.EXECUTABLE_START_METHOD_NAME;
-import static com.nxtgizmo.androidmqttdemo.dashboard.DashBoardActivity.WEB_ADDRESS;
+import static com.nxtgizmo.androidmqttdemo.mqtt_app.AppConfig.APP_NAME;
+import static com.nxtgizmo.androidmqttdemo.mqtt_app.AppConfig.JOB_TIMEOUT;
 
 public class Job {
 
@@ -37,14 +31,39 @@ public class Job {
     private final int fraction;
     private final int totalFractions;
     private final String jobId;
-    private final String TIME = "TIME";
-    private final String SIZE = "SIZE";
-    private final String PATH = "PATH";
+    private final String deviceId;
+    private final String executableSha256;
+    private final int priority;
+    private final long deadline;
+    private final long timeout;
+    private final int attempt;
     private final String outputFilePath;
     private final File appDir;
+    // everything the job writes lives here and is deleted with it
+    private final File scratchDir;
+    private long queueRowId = -1;
+    private String state = JobContract.JobQueue.STATE_RECEIVED;
+    private long consumedTime = -1;
+    // bytes, recorded when a combiner takes the output
+    private long outputFileSize = -1;
+    // System.nanoTime() when the job was accepted, for the queue wait
+    private final long acceptedAt = System.nanoTime();
+    private ResourceSampler.Usage usage;
+    private ExecutableCache.Executable executable;
+    // set once by abort(), the stage that sees it first stops the job
+    private volatile String abortReason;
+    private volatile boolean finished = false;
+    // the thread running the current stage and the job process call, interrupted on abort
+    private Thread stageThread;
+    private JobProcessPool.Call processCall;
+    private ScheduledFuture<?> deadlineWatch;
+    // System.nanoTime() when the execution started, 0 before
+    private long executionStartedAt = 0;
 
     public Job(JobExecutionService jobExecutionService, String jobExecutableURL, String jobInputURL,
-               String executableFileName, int fraction, int totalFractions, String jobId) {
+               String executableFileName, int fraction, int totalFractions, String jobId,
+               String deviceId, String executableSha256, int priority, long deadline, long timeout,
+               int attempt) {
         this.jobExecutionService = jobExecutionService;
         this.jobExecutableURL = jobExecutableURL;
         this.jobInputURL = jobInputURL;
@@ -52,92 +71,481 @@ public class Job {
         this.fraction = fraction;
         this.totalFractions = totalFractions;
         this.jobId = jobId;
-        outputFilePath = jobExecutionService.getCacheDir().getAbsolutePath() + "/" + APP_NAME + "/output";
+        this.deviceId = deviceId;
+        this.executableSha256 = executableSha256;
+        this.priority = priority;
+        this.deadline = deadline;
+        this.timeout = timeout > 0 ? timeout : JOB_TIMEOUT;
+        this.attempt = attempt;
         appDir = new File(jobExecutionService.getCacheDir(), APP_NAME);
+        scratchDir = new File(appDir, "jobs/" + jobId + "_" + fraction);
+        outputFilePath = new File(scratchDir, "output").getAbsolutePath();
         createAppDir();
     }
 
+    // rebuilds a job a previous process persisted but did not finish
+    public static Job resume(JobExecutionService jobExecutionService, JobQueueStore.Entry entry) {
+        Job job = new Job(jobExecutionService, entry.getExecutableURL(), entry.getInputURL(),
+                entry.getExecutableFileName(), entry.getFraction(), entry.getTotalFractions(),
+                entry.getJobId(), entry.getDeviceId(), entry.getExecutableSha256(), entry.getPriority(),
+                entry.getDeadline(), entry.getTimeout(), entry.getAttempt());
+        job.queueRowId = entry.getRowId();
+        job.state = entry.getState();
+        job.consumedTime = entry.getConsumedTime();
+        // the executable can only be rerun from the start, but a finished output only needs uploading
+        if (JobContract.JobQueue.STATE_UPLOADING.equals(job.state) && !new File(job.outputFilePath).exists())
+            job.state = JobContract.JobQueue.STATE_RECEIVED;
+        return job;
+    }
+
+    public void persist() {
+        queueRowId = jobExecutionService.getJobQueueStore().insert(jobId, jobExecutableURL, jobInputURL,
+                executableFileName, fraction, totalFractions, deviceId, executableSha256, priority, deadline,
+                timeout, attempt);
+    }
+
+    // the job will not run here, e.g. because it was handed back to the server
+    public void discard() {
+        finish();
+    }
+
     public void run() {
+        if (fetch() && execute())
+            upload();
+    }
+
+    // stops the job at the next stage boundary. a running executable is interrupted and, in a job
+    // process, killed after CANCEL_GRACE_PERIOD. executables running in the worker service can only
+    // be interrupted, a job that ignores it is recorded as aborted once it returns.
+    public void abort(String reason) {
+        JobProcessPool.Call call;
+        synchronized (this) {
+            if (finished || abortReason != null)
+                return;
+            abortReason = reason;
+            if (stageThread != null)
+                stageThread.interrupt();
+            call = processCall;
+        }
+        jobExecutionService.onError("aborting job %s fraction %s >\nreason: %s", jobId, fraction, reason);
+        if (call != null)
+            call.cancel();
+    }
+
+    // first pipeline stage, returns false if the job failed
+    public boolean fetch() {
+        jobExecutionService.getJobMetrics().recordSince(JobMetrics.QUEUE_WAIT, acceptedAt);
+        watchDeadline();
+        if (stopIfAborted())
+            return false;
+        if (JobContract.JobQueue.STATE_UPLOADING.equals(state))
+            return true;
+        enterStage();
+        try {
+            setState(JobContract.JobQueue.STATE_DOWNLOADING);
+            executable = jobExecutionService.getExecutableCache().get(jobExecutableURL, executableFileName,
+                    executableSha256);
+            return true;
+        } catch (IOException | ClassNotFoundException | NoSuchMethodException | RuntimeException |
+                LinkageError e) {
+            // a dex that does not verify or link fails the job like one that is missing
+            if (!stopIfAborted())
+                fail(e);
+            return false;
+        } finally {
+            leaveStage();
+        }
+    }
+
+    // second pipeline stage, returns false if the job failed
+    public boolean execute() {
+        if (stopIfAborted())
+            return false;
+        if (JobContract.JobQueue.STATE_UPLOADING.equals(state)) {
+            jobExecutionService.onSuccess("resuming upload >\nid: %s\nfraction: %s", jobId, fraction);
+            return true;
+        }
+        enterStage();
+        ScheduledFuture<?> timeoutWatch = timeout > 0 ? watch(JobContract.Job.ABORT_REASON_TIMEOUT, timeout) : null;
+        try {
+            consumedTime = execute(executable);
+            // a result that came in after the abort is not wanted anymore
+            if (stopIfAborted())
+                return false;
+            setExecuted(consumedTime);
+            return true;
+        } catch (IOException | IllegalAccessException | InstantiationException |
+                InvocationTargetException | InterruptedException | RuntimeException | LinkageError e) {
+            // LinkageError includes an ExceptionInInitializerError of the job class
+            if (!stopIfAborted())
+                fail(e);
+            return false;
+        } finally {
+            if (timeoutWatch != null)
+                timeoutWatch.cancel(false);
+            leaveStage();
+        }
+    }
+
+    // last pipeline stage
+    public void upload() {
+        if (stopIfAborted())
+            return;
+        long s = System.nanoTime();
+        long timeSpentToUploadOutputFile = uploadOutput(outputFilePath, consumedTime);
+        jobExecutionService.getJobMetrics().recordSince(JobMetrics.UPLOAD, s);
+        if (timeSpentToUploadOutputFile == -1) {
+            // keep the result, it is uploaded again once the job is resumed after a restart
+            return;
+        }
+        complete(timeSpentToUploadOutputFile, new File(outputFilePath).length());
+    }
+
+    // last stage of a fraction whose output went into the combined result of its batch, with what
+    // the upload of that result returned. after a failed upload the job stays pending, the combiner
+    // keeps the result and uploads it again once the job is resumed.
+    public void completeCombined(long timeSpentToUploadOutputFile) {
+        if (timeSpentToUploadOutputFile != -1)
+            complete(timeSpentToUploadOutputFile, outputFileSize);
+    }
+
+    // hands the output over to a combiner, returns false if it could not be moved
+    public boolean moveOutput(File target) {
+        File output = new File(outputFilePath);
+        outputFileSize = output.length();
+        return output.renameTo(target);
+    }
+
+    // the output was merged into a combined result and is not needed anymore
+    public void deleteOutput() {
+        File output = new File(outputFilePath);
+        outputFileSize = output.length();
+        output.delete();
+    }
+
+    private void complete(long timeSpentToUploadOutputFile, long outputFileSize) {
+        String reason = null;
+        if (timeSpentToUploadOutputFile == ResultUploader.ALREADY_DONE) {
+            reason = JobContract.Job.ABORT_REASON_DUPLICATE;
+            timeSpentToUploadOutputFile = 0;
+        }
+        long timeSpentToDownloadExecutable = executable != null ? executable.getDownloadTime() : 0;
+        long size = executable != null ? executable.getSize() : -1;
+        insertStats(outputFilePath, consumedTime, usage,
+                timeSpentToDownloadExecutable, timeSpentToUploadOutputFile,
+                size, outputFileSize, reason);
+        finish();
+    }
+
+    private void fail(Throwable e) {
+        e.printStackTrace();
+        jobExecutionService.onError(e.getMessage());
+        reportError(String.valueOf(e.getMessage()));
+        finish();
+    }
+
+    // returns true if the job was aborted, in which case it is finished here
+    private boolean stopIfAborted() {
+        if (abortReason == null && deadline > 0 && System.currentTimeMillis() >= deadline)
+            abort(JobContract.Job.ABORT_REASON_DEADLINE);
+        String reason = abortReason;
+        if (reason == null)
+            return false;
+        synchronized (this) {
+            if (finished)
+                return true;
+            finished = true;
+        }
+        long ranFor = executionStartedAt != 0 ? (System.nanoTime() - executionStartedAt) / 1000000 : -1;
+        insertStats(outputFilePath, ranFor, usage,
+                executable != null ? executable.getDownloadTime() : 0, -1,
+                executable != null ? executable.getSize() : -1, -1, reason);
+        // a cancelled fraction is not wanted by the server anymore, a late one is reported like a failure
+        if (!JobContract.Job.ABORT_REASON_CANCELLED.equals(reason))
+            reportError("aborted: " + reason);
+        finish();
+        return true;
+    }
+
+    private void reportError(String message) {
         try {
-            HashMap<String, Object> h = downloadAndSave(jobExecutableURL, executableFileName);
-            long timeSpentToDownloadExecutable = (long) h.get(TIME);
-            String executableFilePath = (String) h.get(PATH);
-            int size = (int) h.get(SIZE);
-
-            final DexClassLoader classLoader = new DexClassLoader(executableFilePath,
-                    jobExecutionService.getCacheDir().getAbsolutePath(), null,
-                    this.getClass().getClassLoader());
-            final Class<Object> c = (Class<Object>) classLoader.loadClass(EXECUTABLE_JOB_CLASS);
-            final Object executableJobInstance = c.newInstance();
-            Method start = c.getMethod(EXECUTABLE_START_METHOD_NAME,
-                    String.class, String.class, int.class, int.class);
-
-            String m = String.format("starting execution >\nexecutable:\n%s\ninput:\n%s", executableFileName, jobInputURL);
-            jobExecutionService.onSuccess(m);
-
-            long s = System.currentTimeMillis();
-            start.invoke(executableJobInstance, jobInputURL, outputFilePath, fraction, totalFractions); // TODO don't let write anywhere except
-            long e = System.currentTimeMillis();
-            long consumedTime = e - s;
-
-            m = String.format("took %s milliseconds to execute >\n%s", consumedTime, executableFileName);
-            jobExecutionService.onSuccess(m);
-
-            long timeSpentToUploadOutputFile = uploadOutput(outputFilePath, consumedTime);
-            insertStats(outputFilePath, consumedTime, -1, -1,
-                    timeSpentToDownloadExecutable, timeSpentToUploadOutputFile,
-                    size, new File(outputFilePath).length());
-        } catch (IOException | ClassNotFoundException | IllegalAccessException |
-                InstantiationException | NoSuchMethodException | InvocationTargetException e) {
-            e.printStackTrace();
+            String errorsFilePath = writeFileOnInternalStorage(
+                    "errors_" + jobId + "_" + fraction + ".csv", message.getBytes());
+            uploadOutput(errorsFilePath, -1);
+        } catch (IOException e) {
             jobExecutionService.onError(e.getMessage());
-            try {
-                String errorsFilePath = writeFileOnInternalStorage("errors.csv",
-                        e.getMessage().getBytes());
-                uploadOutput(errorsFilePath, -1);
-            } catch (IOException e2) {
-                jobExecutionService.onError(e2.getMessage());
+        }
+    }
+
+    private void finish() {
+        synchronized (this) {
+            finished = true;
+        }
+        if (deadlineWatch != null)
+            deadlineWatch.cancel(false);
+        setState(JobContract.JobQueue.STATE_DONE);
+        deleteScratchDir();
+    }
+
+    private synchronized void enterStage() {
+        stageThread = Thread.currentThread();
+    }
+
+    private synchronized void leaveStage() {
+        stageThread = null;
+        // an abort that came too late must not interrupt the next job on this thread
+        Thread.interrupted();
+    }
+
+    private void watchDeadline() {
+        if (deadline > 0 && deadlineWatch == null)
+            deadlineWatch = watch(JobContract.Job.ABORT_REASON_DEADLINE,
+                    Math.max(0, deadline - System.currentTimeMillis()));
+    }
+
+    private ScheduledFuture<?> watch(final String reason, long delay) {
+        try {
+            return jobExecutionService.getWatchdog().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    abort(reason);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RuntimeException e) {
+            // shutting down
+            return null;
+        }
+    }
+
+    private long execute(ExecutableCache.Executable executable) throws IOException,
+            IllegalAccessException, InstantiationException, InvocationTargetException,
+            InterruptedException {
+        setState(JobContract.JobQueue.STATE_RUNNING);
+        // a leftover of an earlier attempt must not end up in this output
+        deleteScratchDir();
+        createScratchDir();
+        executionStartedAt = System.nanoTime();
+        JobProcessPool jobProcessPool = jobExecutionService.getJobProcessPool();
+        if (jobProcessPool != null)
+            return executeInJobProcess(jobProcessPool, executable);
+
+        JobMetrics jobMetrics = jobExecutionService.getJobMetrics();
+        long s = System.nanoTime();
+        final Object executableJobInstance = executable.newInstance();
+        jobMetrics.recordSince(JobMetrics.CLASS_INIT, s);
+
+        jobExecutionService.onSuccess("starting execution >\nexecutable:\n%s\ninput:\n%s", executableFileName, jobInputURL);
+
+        long consumedTime;
+        ResourceSampler.Sampling sampling = jobExecutionService.getResourceSampler().begin();
+        s = System.nanoTime();
+        try {
+            consumedTime = invoke(executable, executableJobInstance);
+            jobMetrics.recordSince(JobMetrics.EXECUTE, s);
+        } finally {
+            usage = sampling.end();
+        }
+
+        jobExecutionService.onSuccess("took %s milliseconds to execute >\n%s\n%s", consumedTime, executableFileName, usage);
+        return consumedTime;
+    }
+
+    private long invoke(ExecutableCache.Executable executable, Object executableJobInstance)
+            throws IOException, IllegalAccessException, InvocationTargetException {
+        long consumedTime;
+        String m;
+        Method streamStart = executable.getStreamStartMethod();
+        if (streamStart != null) {
+            // the executable reads its own slice of the input while it is still arriving
+            try (Downloader.Slice slice = jobExecutionService.getDownloader()
+                    .openSlice(jobInputURL, fraction, totalFractions);
+                 OutputChannel output = ExecutableCache.openOutput(streamStart, outputFilePath)) {
+                long s = System.nanoTime();
+                streamStart.invoke(executableJobInstance, slice.getInputStream(), slice.getStart(),
+                        slice.getEnd(), output != null ? output : outputFilePath, fraction, totalFractions);
+                consumedTime = (System.nanoTime() - s) / 1000000;
+                jobExecutionService.onSuccess("read %s bytes of input >\n%s", slice.getTransferredBytes(), jobInputURL);
+            }
+        } else {
+            Method start = executable.getStartMethod();
+            try (OutputChannel output = ExecutableCache.openOutput(start, outputFilePath)) {
+                long s = System.nanoTime();
+                start.invoke(executableJobInstance, jobInputURL, output != null ? output : outputFilePath,
+                        fraction, totalFractions);
+                consumedTime = (System.nanoTime() - s) / 1000000;
             }
         }
+        return consumedTime;
     }
 
-    private HashMap<String, Object> downloadAndSave(String downloadUrl, String filename) throws IOException {
-        long s = System.currentTimeMillis();
-        InputStream is = new URL(downloadUrl).openConnection().getInputStream();
-        BufferedInputStream bis = new BufferedInputStream(is);
-        File f = new File(appDir, filename);
-        FileOutputStream fos = new FileOutputStream(f);
-        byte[] baf = new byte[1024 * 1024];
-        int current;
-        int acc = 0;
-        while ((current = bis.read(baf, 0, baf.length)) != -1) {
-            fos.write(baf, 0, current);
-            acc += current;
+    // runs the executable in one of the job processes. they run under the uid of the app, so the
+    // isolation is against crashes and memory, not against what the executable may write
+    private long executeInJobProcess(JobProcessPool jobProcessPool, ExecutableCache.Executable executable)
+            throws IOException, InterruptedException {
+        jobExecutionService.onSuccess("starting execution in a job process >\nexecutable:\n%s\ninput:\n%s",
+                executableFileName, jobInputURL);
+        Bundle request = new Bundle();
+        request.putString(JobProcessService.KEY_EXECUTABLE_PATH, executable.getPath());
+        request.putString(JobProcessService.KEY_OUTPUT_PATH, outputFilePath);
+        request.putInt(JobProcessService.KEY_FRACTION, fraction);
+        request.putInt(JobProcessService.KEY_TOTAL_FRACTIONS, totalFractions);
+
+        JobProcessPool.Call call = jobProcessPool.newCall();
+        synchronized (this) {
+            processCall = call;
         }
-        fos.flush();
-        fos.close();
-        long e = System.currentTimeMillis();
-        String m = String.format("download status >\nfile: %s\ntime: %s milliseconds", downloadUrl, (e - s));
-        jobExecutionService.onSuccess(m);
-        HashMap<String, Object> output = new HashMap<>();
-        output.put(SIZE, acc);
-        output.put(PATH, f.getAbsolutePath());
-        output.put(TIME, (e - s));
-        return output;
+        // an abort before the call was published did not reach it
+        if (abortReason != null)
+            call.cancel();
+        JobProcessPool.Result result;
+        long s = System.nanoTime();
+        try {
+            result = execute(call, request);
+        } finally {
+            synchronized (this) {
+                processCall = null;
+            }
+        }
+        JobMetrics jobMetrics = jobExecutionService.getJobMetrics();
+        if (result.getClassInitTime() >= 0)
+            jobMetrics.record(JobMetrics.CLASS_INIT, result.getClassInitTime());
+        if (result.getError() != null)
+            throw new IOException(result.getError());
+        jobMetrics.recordSince(JobMetrics.EXECUTE, s);
+        usage = result.getUsage();
+        long consumedTime = result.getConsumedTime();
+        jobExecutionService.onSuccess("took %s milliseconds to execute >\n%s\n%s", consumedTime, executableFileName, usage);
+        return consumedTime;
+    }
+
+    private JobProcessPool.Result execute(JobProcessPool.Call call, Bundle request)
+            throws IOException, InterruptedException {
+        if (executable.getStreamStartMethod() == null) {
+            request.putString(JobProcessService.KEY_INPUT_URL, jobInputURL);
+            return call.execute(request);
+        }
+        // the slice is downloaded here and piped into the process while it executes
+        try (Downloader.Slice slice = jobExecutionService.getDownloader()
+                .openSlice(jobInputURL, fraction, totalFractions)) {
+            ParcelFileDescriptor[] pipe = ParcelFileDescriptor.createPipe();
+            request.putParcelable(JobProcessService.KEY_INPUT, pipe[0]);
+            request.putLong(JobProcessService.KEY_INPUT_START, slice.getStart());
+            request.putLong(JobProcessService.KEY_INPUT_END, slice.getEnd());
+            Thread pump = pump(slice.getInputStream(),
+                    new ParcelFileDescriptor.AutoCloseOutputStream(pipe[1]));
+            JobProcessPool.Result result;
+            try {
+                result = call.execute(request);
+            } finally {
+                // the process is done with the input, a pump still waiting for the network stops
+                pipe[0].close();
+                slice.close();
+                pump.join();
+            }
+            jobExecutionService.onSuccess("read %s bytes of input >\n%s", slice.getTransferredBytes(), jobInputURL);
+            return result;
+        }
+    }
+
+    // copies the input into the pipe until it ends or the job process closes its end
+    private Thread pump(final InputStream in, final OutputStream out) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                byte[] buffer = new byte[64 * 1024];
+                try {
+                    int n;
+                    while ((n = in.read(buffer)) != -1)
+                        out.write(buffer, 0, n);
+                } catch (IOException e) {
+                    // the executable stopped reading, its result tells whether that was an error
+                } finally {
+                    try {
+                        out.close();
+                    } catch (IOException e) {
+                        // broken pipe
+                    }
+                }
+            }
+        }, "job-pipe");
+        thread.start();
+        return thread;
+    }
+
+    private void setState(String state) {
+        this.state = state;
+        if (queueRowId != -1)
+            jobExecutionService.getJobQueueStore().updateState(queueRowId, state);
+    }
+
+    private void setExecuted(long consumedTime) {
+        this.state = JobContract.JobQueue.STATE_UPLOADING;
+        if (queueRowId != -1)
+            jobExecutionService.getJobQueueStore().markExecuted(queueRowId, consumedTime);
+    }
+
+    public String getJobId() {
+        return jobId;
+    }
+
+    public int getFraction() {
+        return fraction;
+    }
+
+    public int getAttempt() {
+        return attempt;
+    }
+
+    public String getOutputFilePath() {
+        return outputFilePath;
+    }
+
+    // null until the job was fetched
+    public ExecutableCache.Executable getExecutable() {
+        return executable;
+    }
+
+    // milliseconds, -1 until the job executed
+    public long getConsumedTime() {
+        return consumedTime;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    public long getDeadline() {
+        return deadline;
     }
 
     private void createAppDir() {
         if (!appDir.exists()) {
             boolean t = appDir.mkdir();
-            String m = String.format("created folder %s ? %s", APP_NAME, t);
-            jobExecutionService.onSuccess(m);
+            jobExecutionService.onSuccess("created folder %s ? %s", APP_NAME, t);
         }
     }
 
+    private void createScratchDir() throws IOException {
+        if (!scratchDir.isDirectory() && !scratchDir.mkdirs())
+            throw new IOException("could not create " + scratchDir);
+    }
+
+    private void deleteScratchDir() {
+        delete(scratchDir);
+    }
+
+    private static void delete(File f) {
+        File[] children = f.listFiles();
+        if (children != null)
+            for (File child : children)
+                delete(child);
+        f.delete();
+    }
+
     private String writeFileOnInternalStorage(String fileName, byte[] body) throws IOException {
-        File f = new File(appDir, fileName);
-        String m = String.format("writing file >\npath: %s", f.getAbsoluteFile());
-        jobExecutionService.onSuccess(m);
+        createScratchDir();
+        File f = new File(scratchDir, fileName);
+        jobExecutionService.onSuccess("writing file >\npath: %s", f.getAbsoluteFile());
         FileOutputStream fos = new FileOutputStream(f);
         fos.write(body);
         fos.flush();
@@ -146,42 +554,15 @@ public class Job {
     }
 
     private long uploadOutput(String outputPath, long consumedTime) {
-        File file = new File(outputPath);
-        MultipartBody multipartBody = new MultipartBody.Builder()
-                .setType(MultipartBody.FORM)
-                .addFormDataPart("index", String.valueOf(fraction))
-                .addFormDataPart("device_id", jobExecutionService.getDeviceId())
-                .addFormDataPart("consumed_time", String.valueOf(consumedTime))
-                .addFormDataPart("file", "partial_result_file.out",
-                        RequestBody.create(MediaType.parse("text/csv"), file)) // TODO media type may be unknown
-                .build();
-        Request request = new Request.Builder()
-                .url(WEB_ADDRESS + "/jobs/" + jobId + "/partial-results/")
-                .post(multipartBody)
-                .build();
-        try {
-            long s = System.currentTimeMillis();
-            Response response = new OkHttpClient().newCall(request).execute();
-            long e = System.currentTimeMillis();
-            int respCode = response.code();
-            String respMsg = response.message();
-            String respBody = response.body().string();
-            String m = String.format("upload status >\nstatus code: %s\nresponse message: %s\nresponse body: %s\nupload time: %s milliseconds",
-                    respCode, respMsg, respBody, e - s);
-            jobExecutionService.onSuccess(m);
-            return e - s;
-        } catch (IOException e) {
-            jobExecutionService.onError(e.getMessage());
-        }
-        return -1;
+        return jobExecutionService.getResultUploader()
+                .upload(jobId, fraction, attempt, deviceId, outputPath, consumedTime);
     }
 
     private void insertStats(String outputFilePath, long consumedTime,
-                             int avgCpuUsage, int avgRamUsage,
+                             ResourceSampler.Usage usage,
                              long timeSpentToDownloadExecutable,
                              long timeSpentToUploadOutputFile,
-                             long executableSize, long outputFileSize) {
-        SQLiteDatabase db = jobExecutionService.getJobDBHelper().getWritableDatabase();
+                             long executableSize, long outputFileSize, String abortReason) {
         ContentValues values = new ContentValues();
         values.put(JobContract.Job.COLUMN_NAME_ID, jobId);
         values.put(JobContract.Job.COLUMN_NAME_EXECUTABLE_URL, jobExecutableURL);
@@ -189,15 +570,23 @@ public class Job {
         values.put(JobContract.Job.COLUMN_NAME_OUTPUT_FILE_PATH, outputFilePath);
         values.put(JobContract.Job.COLUMN_NAME_FRACTION, fraction);
         values.put(JobContract.Job.COLUMN_NAME_TOTAL_FRACTIONS, totalFractions);
+        values.put(JobContract.Job.COLUMN_NAME_ATTEMPT, attempt);
         values.put(JobContract.Job.COLUMN_NAME_CONSUMED_TIME, consumedTime);
-        values.put(JobContract.Job.COLUMN_NAME_AVG_CPU_USAGE, avgCpuUsage);
-        values.put(JobContract.Job.COLUMN_NAME_AVG_RAM_USAGE, avgRamUsage);
+        // a job resumed after its execution has no usage, it was measured by the previous process
+        values.put(JobContract.Job.COLUMN_NAME_AVG_CPU_USAGE, usage != null ? usage.getAvgCpuUsage() : -1);
+        values.put(JobContract.Job.COLUMN_NAME_PEAK_CPU_USAGE, usage != null ? usage.getPeakCpuUsage() : -1);
+        values.put(JobContract.Job.COLUMN_NAME_P90_CPU_USAGE, usage != null ? usage.getP90CpuUsage() : -1);
+        values.put(JobContract.Job.COLUMN_NAME_AVG_PROCESS_CPU_USAGE, usage != null ? usage.getAvgProcessCpuUsage() : -1);
+        values.put(JobContract.Job.COLUMN_NAME_CPU_TIME, usage != null ? usage.getCpuTime() : -1);
+        values.put(JobContract.Job.COLUMN_NAME_AVG_RAM_USAGE, usage != null ? usage.getAvgRamUsage() : -1);
+        values.put(JobContract.Job.COLUMN_NAME_PEAK_RAM_USAGE, usage != null ? usage.getPeakRamUsage() : -1);
+        values.put(JobContract.Job.COLUMN_NAME_P90_RAM_USAGE, usage != null ? usage.getP90RamUsage() : -1);
+        values.put(JobContract.Job.COLUMN_NAME_PEAK_RSS, usage != null ? usage.getPeakRss() : -1);
         values.put(JobContract.Job.COLUMN_NAME_AVG_TIME_SPENT_TO_DOWNLOAD_EXECUTABLE, timeSpentToDownloadExecutable);
         values.put(JobContract.Job.COLUMN_NAME_AVG_TIME_SPENT_TO_UPLOAD_OUTPUT_FILE, timeSpentToUploadOutputFile);
         values.put(JobContract.Job.COLUMN_NAME_EXECUTABLE_SIZE, executableSize);
         values.put(JobContract.Job.COLUMN_NAME_OUTPUT_FILE_SIZE, outputFileSize);
-        long newRowId = db.insert(JobContract.Job.TABLE_NAME, null, values);
-//        String m = String.format("inserted job stats into SQLite:\n%s\nrow id: %s", values, newRowId);
-//        jobExecutionService.onSuccess(m);
+        values.put(JobContract.Job.COLUMN_NAME_ABORT_REASON, abortReason);
+        jobExecutionService.getJobStatsWriter().insert(values);
     }
 }
\ No newline at end of file
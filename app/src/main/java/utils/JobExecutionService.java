@@ -1,165 +1,590 @@
 package utils;
 
-import com.nxtgizmo.androidmqttdemo.dashboard.DashBoardActivity;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
 
 import org.eclipse.paho.android.service.MqttAndroidClient;
-import org.eclipse.paho.client.mqttv3.IMqttActionListener;
 import org.eclipse.paho.client.mqttv3.IMqttMessageListener;
-import org.eclipse.paho.client.mqttv3.IMqttToken;
 import org.eclipse.paho.client.mqttv3.MqttException;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
 
 
 import java.io.File;
 import java.security.SecureRandom;
-
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.OkHttpClient;
 import timber.log.Timber;
+import utils.data.JobContract;
 import utils.data.JobDBHelper;
-
-import static com.nxtgizmo.androidmqttdemo.dashboard.DashBoardActivity.QOS;
-import static com.nxtgizmo.androidmqttdemo.dashboard.DashBoardActivity.WEB_ADDRESS;
-import static com.nxtgizmo.androidmqttdemo.dashboard.DashBoardActivity.UNREGISTRATION_TOPIC;
-import static com.nxtgizmo.androidmqttdemo.dashboard.DashBoardActivity.REGISTRATION_TOPIC;
-
-public class JobExecutionService {
+import utils.data.JobQueueStore;
+import utils.data.JobStatsWriter;
+import utils.data.OutboxStore;
+
+import static com.nxtgizmo.androidmqttdemo.mqtt_app.AppConfig.BATCH_PARALLELISM;
+import static com.nxtgizmo.androidmqttdemo.mqtt_app.AppConfig.CANCEL_TOPIC;
+import static com.nxtgizmo.androidmqttdemo.mqtt_app.AppConfig.CAPACITY_TOPIC;
+import static com.nxtgizmo.androidmqttdemo.mqtt_app.AppConfig.DOWNLOAD_MAX_ATTEMPTS;
+import static com.nxtgizmo.androidmqttdemo.mqtt_app.AppConfig.DOWNLOAD_RETRY_DELAY;
+import static com.nxtgizmo.androidmqttdemo.mqtt_app.AppConfig.DRAIN_TIMEOUT;
+import static com.nxtgizmo.androidmqttdemo.mqtt_app.AppConfig.EXECUTION_SLOTS;
+import static com.nxtgizmo.androidmqttdemo.mqtt_app.AppConfig.ISOLATED_EXECUTION;
+import static com.nxtgizmo.androidmqttdemo.mqtt_app.AppConfig.JOB_MAX_RESUMES;
+import static com.nxtgizmo.androidmqttdemo.mqtt_app.AppConfig.JOB_PROCESSES;
+import static com.nxtgizmo.androidmqttdemo.mqtt_app.AppConfig.JOB_QUEUE_CAPACITY;
+import static com.nxtgizmo.androidmqttdemo.mqtt_app.AppConfig.MQTT_OUTBOX_CAPACITY;
+import static com.nxtgizmo.androidmqttdemo.mqtt_app.AppConfig.PIPELINE_DEPTH;
+import static com.nxtgizmo.androidmqttdemo.mqtt_app.AppConfig.REJECTION_TOPIC;
+import static com.nxtgizmo.androidmqttdemo.mqtt_app.AppConfig.STATS_BATCH_SIZE;
+import static com.nxtgizmo.androidmqttdemo.mqtt_app.AppConfig.STATS_FLUSH_INTERVAL;
+import static com.nxtgizmo.androidmqttdemo.mqtt_app.AppConfig.WEB_ADDRESS;
+import static com.nxtgizmo.androidmqttdemo.mqtt_app.AppConfig.UNREGISTRATION_TOPIC;
+import static com.nxtgizmo.androidmqttdemo.mqtt_app.AppConfig.UPLOAD_CHUNK_SIZE;
+import static com.nxtgizmo.androidmqttdemo.mqtt_app.AppConfig.UPLOAD_DEDUP_CHECK;
+import static com.nxtgizmo.androidmqttdemo.mqtt_app.AppConfig.UPLOAD_MAX_ATTEMPTS;
+import static com.nxtgizmo.androidmqttdemo.mqtt_app.AppConfig.UPLOAD_RETRY_DELAY;
+import static com.nxtgizmo.androidmqttdemo.mqtt_app.AppConfig.UPLOAD_SLOTS;
+import static com.nxtgizmo.androidmqttdemo.mqtt_app.AppConfig.REGISTRATION_TOPIC;
+
+public class JobExecutionService implements EventSink {
+
+    private static final String DEVICE_PREFERENCES = "device";
+    private static final String DEVICE_ID = "device_id";
+    // outbox keys, only the latest registration state and capacity are sent after a disconnect
+    private static final String OUTBOX_KEY_REGISTRATION = "registration";
+    private static final String OUTBOX_KEY_CAPACITY = "capacity";
 
     private final MqttAndroidClient client;
-    private final DashBoardActivity dashBoardActivity;
+    private final MqttSession session;
+    private final Context context;
+    private final JobDBHelper jobDBHelper;
+    private final EventLog eventLog;
+    private final ExecutionLocks executionLocks;
     private final SecureRandom numberGenerator = new SecureRandom();
-    private String deviceId;
-
-    // message format: relative_executable_address + space + relative_input_address + space + fraction + space + total_fractions + space + uuid
-    // ex: /media/jobs/2021/01/01/executables/yy_Sg0go6G.jar /media/jobs/2021/01/01/input_files/xx_mEibqXd.csv 3 10 c98610fb7bfb8068cf2616e1c2c00a76
+    private final JobExecutor fetchExecutor;
+    private final JobExecutor jobExecutor;
+    private final JobExecutor uploadExecutor;
+    // runs the fractions of batch jobs
+    private final ExecutorService batchPool;
+    private final OkHttpClient httpClient;
+    private final Downloader downloader;
+    private final ExecutableCache executableCache;
+    private final ResultUploader resultUploader;
+    private final JobQueueStore jobQueueStore;
+    private final ResourceSampler resourceSampler;
+    private final JobMetrics jobMetrics;
+    private final MetricsExporter metricsExporter;
+    private final JobStatsWriter jobStatsWriter;
+    private final CapacityGovernor capacityGovernor;
+    // aborts jobs at their deadline or timeout
+    private final ScheduledThreadPoolExecutor watchdog;
+    // null if executables run in this process
+    private final JobProcessPool jobProcessPool;
+    private final String deviceId;
+    private final AtomicInteger busySlots = new AtomicInteger();
+    // job_id/fraction -> job, from its arrival until it executed
+    private final Map<String, Job> activeJobs = new ConcurrentHashMap<>();
+    private volatile boolean terminating = false;
+    private volatile boolean registered = false;
+    private boolean resumed = false;
+
+    // the device subscribes once to its device id and receives a stream of job messages on it.
+    // the server should only send jobs while the last capacity announced on CAPACITY_TOPIC is above 0
+    // a message carries one or more job descriptors, see JobMessageParser for the format
     private class MessageListener implements IMqttMessageListener {
-        private boolean firstMessage = true;
 
         @Override
         public void messageArrived(String topic, MqttMessage message) throws MqttException {
-            String m = null;
-            if (firstMessage)
-                firstMessage = false;
-            else
-                m = String.format("received another message in topic %s: %s \nignored it",
-                        topic, message);
-
-            if (message.isDuplicate())
-                m = String.format("received duplicated message in topic %s: %s \nignored it",
-                        topic, message);
-
-            if (message.isRetained())
-                m = String.format("received retained message in topic %s: %s \nignored it",
+            if (message.isRetained()) {
+                onError("received retained message in topic %s: %s \nignored it",
                         topic, message);
+                return;
+            }
 
-            if (m != null) {
-                dashBoardActivity.onError(m);
+            List<JobMessage> jobMessages;
+            try {
+                jobMessages = JobMessageParser.parse(message.getPayload());
+            } catch (JobMessageParser.MalformedJobMessageException e) {
+                onError("received malformed job message in topic %s: %s\nignored it",
+                        topic, e.getMessage());
                 return;
             }
+            if (StartupTimings.mark(StartupTimings.FIRST_JOB))
+                onSuccess("startup timings in milliseconds >\n%s", StartupTimings.toSummary());
+            for (JobMessage jobMessage : jobMessages)
+                accept(topic, jobMessage);
+        }
+
+        // a descriptor with several fractions takes one slot per fraction, those beyond the free
+        // slots are handed back and the others run as a batch
+        private void accept(String topic, JobMessage jobMessage) {
+            String jobExecutableURL = getAbsoluteAddress(jobMessage.getExecutablePath());
+            String jobInputURL = getAbsoluteAddress(jobMessage.getInputPath());
+            int[] fractions = jobMessage.getFractions();
+            int totalFractions = jobMessage.getTotalFractions();
+            String jobId = jobMessage.getJobId();
 
-            String[] arr = message.toString().split(" ");
-            String jobExecutableURL = getAbsoluteAddress(arr[0]);
-            String jobInputURL = getAbsoluteAddress(arr[1]);
-            int fraction = Integer.parseInt(arr[2]);
-            int totalFractions = Integer.parseInt(arr[3]);
-            String jobId = arr[4];
-            String executableFileName = getLastPartOfStringBySlash(jobExecutableURL);
-            m = String.format("received job >\ntopic: %s\nid: %s\nexecutable url:\n%s\n" +
+            onSuccess("received job >\ntopic: %s\nid: %s\nexecutable url:\n%s\n" +
                             "input url:\n%s\nfraction: %s\ntotal fractions: %s",
-                    topic, jobId, jobExecutableURL, jobInputURL, fraction, totalFractions);
-            dashBoardActivity.onSuccess(m);
-            Job job = new Job(JobExecutionService.this, jobExecutableURL, jobInputURL,
-                    executableFileName, fraction, totalFractions, jobId);
-            job.run();
-            JobExecutionService.this.unregister(topic);
-            JobExecutionService.this.register_and_listen();
+                    topic, jobId, jobExecutableURL, jobInputURL,
+                    fractions.length == 1 ? fractions[0] : Arrays.toString(fractions), totalFractions);
+            List<Job> jobs = new ArrayList<>(fractions.length);
+            for (int fraction : fractions) {
+                Job job = new Job(JobExecutionService.this, jobExecutableURL, jobInputURL,
+                        jobMessage.getExecutableFileName(), fraction, totalFractions, jobId, deviceId,
+                        jobMessage.getExecutableSha256(), jobMessage.getPriority(), jobMessage.getDeadline(),
+                        jobMessage.getTimeout(), jobMessage.getAttempt());
+                if (activeJobs.putIfAbsent(jobId + "/" + fraction, job) != null) {
+                    onError("received job %s fraction %s again while it is running\nignored it",
+                            jobId, fraction);
+                    continue;
+                }
+                job.persist();
+                if (busySlots.get() + jobs.size() >= offeredSlots()) {
+                    onError("no free slot, rejected job %s fraction %s", jobId, fraction);
+                    handBack(job);
+                    continue;
+                }
+                jobs.add(job);
+            }
+            if (!jobs.isEmpty() && !submit(jobs)) {
+                for (Job job : jobs) {
+                    onError("job queue is full, rejected job %s fraction %s", jobId, job.getFraction());
+                    handBack(job);
+                }
+            }
         }
-    }
 
-    public JobExecutionService(MqttAndroidClient client, DashBoardActivity dashBoardActivity)
-            throws MqttException {
-        this.client = client;
-        this.dashBoardActivity = dashBoardActivity;
-        connect();
+        // hand the fraction straight back so the server does not wait for it to time out
+        private void handBack(Job job) {
+            job.discard();
+            activeJobs.remove(job.getJobId() + "/" + job.getFraction());
+            reject(job.getJobId(), job.getFraction());
+        }
     }
 
-    private void connect() throws MqttException {
-        IMqttActionListener onConnect = new IMqttActionListener() {
+    // payload: job_id, or job_id + space + fraction to cancel a single fraction. the server sends it
+    // when a fraction is no longer needed, e.g. because a speculative copy on another device finished
+    private class CancelListener implements IMqttMessageListener {
 
-            @Override
-            public void onSuccess(IMqttToken asyncActionToken) {
-                dashBoardActivity.onSuccess("connected to broker");
-                register_and_listen();
+        @Override
+        public void messageArrived(String topic, MqttMessage message) {
+            if (message.isRetained())
+                return;
+            String[] parts = new String(message.getPayload()).trim().split(" ");
+            String jobId = parts[0];
+            String fraction = parts.length > 1 ? parts[1] : null;
+            for (Map.Entry<String, Job> e : activeJobs.entrySet()) {
+                Job job = e.getValue();
+                if (job.getJobId().equals(jobId) &&
+                        (fraction == null || fraction.equals(String.valueOf(job.getFraction()))))
+                    job.abort(JobContract.Job.ABORT_REASON_CANCELLED);
             }
+        }
+    }
 
+    // context is the worker service, which outlives any activity showing the event log
+    public JobExecutionService(Context context, MqttAndroidClient client, OkHttpClient httpClient,
+                               JobDBHelper jobDBHelper, EventLog eventLog) throws MqttException {
+        this.context = context;
+        this.client = client;
+        this.httpClient = httpClient;
+        this.jobDBHelper = jobDBHelper;
+        this.eventLog = eventLog;
+        this.executionLocks = new ExecutionLocks(context);
+        this.deviceId = loadDeviceId();
+        // connecting to the broker overlaps with building the rest, the session holds back what
+        // arrives until it is opened at the end
+        this.session = new MqttSession(context, client, new OutboxStore(getJobDBHelper(), MQTT_OUTBOX_CAPACITY),
+                this, new MqttSession.Listener() {
+                    @Override
+                    public void onConnected(boolean reconnect) {
+                        JobExecutionService.this.onConnected();
+                    }
+
+                    @Override
+                    public void onConnectionLost(Throwable cause) {
+                        // the broker published the will, the device registers again once it is back
+                        registered = false;
+                    }
+                });
+        session.setWill(UNREGISTRATION_TOPIC, deviceId.getBytes());
+        // subscribe first so no job sent in response to the registration is missed
+        listen(deviceId, new MessageListener());
+        listen(CANCEL_TOPIC, new CancelListener());
+        session.start();
+        this.jobProcessPool = ISOLATED_EXECUTION ? new JobProcessPool(context, JOB_PROCESSES) : null;
+        // isolated, a slot without a job process of its own would only wait for one, and the
+        // offered slots follow from these
+        int slots = EXECUTION_SLOTS > 0 ? EXECUTION_SLOTS : Runtime.getRuntime().availableProcessors();
+        if (jobProcessPool != null)
+            slots = Math.min(slots, jobProcessPool.getProcesses());
+        this.jobExecutor = new JobExecutor("job-slot", slots, JOB_QUEUE_CAPACITY);
+        // with a pipeline the next jobs are accepted early so they can be fetched meanwhile
+        int maxOfferedSlots = jobExecutor.getSlots() + PIPELINE_DEPTH;
+        this.fetchExecutor = new JobExecutor("job-fetch", Math.max(1, PIPELINE_DEPTH), maxOfferedSlots);
+        this.uploadExecutor = new JobExecutor("job-upload", UPLOAD_SLOTS, maxOfferedSlots);
+        this.batchPool = JobExecutor.newWorkStealingPool("job-batch", BATCH_PARALLELISM);
+        this.capacityGovernor = new CapacityGovernor(context, jobExecutor.getSlots(),
+                new CapacityGovernor.Listener() {
+                    @Override
+                    public void onCapacityChanged(int slots, String reason) {
+                        applyCapacity(slots, reason);
+                    }
+                });
+        if (capacityGovernor.getSlots() > 0)
+            jobExecutor.setSlots(capacityGovernor.getSlots());
+        this.watchdog = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
             @Override
-            public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
-                dashBoardActivity.onError(exception.getMessage());
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "job-watchdog");
+                thread.setDaemon(true);
+                return thread;
             }
-        };
-        client.connect(null, onConnect);
+        });
+        // finished jobs cancel their timers, they must not pile up until they would have fired
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP)
+            watchdog.setRemoveOnCancelPolicy(true);
+        this.jobMetrics = new JobMetrics();
+        this.downloader = new Downloader(this, httpClient, DOWNLOAD_MAX_ATTEMPTS, DOWNLOAD_RETRY_DELAY);
+        this.executableCache = new ExecutableCache(this, downloader);
+        this.resultUploader = new ResultUploader(this, httpClient, WEB_ADDRESS, UPLOAD_CHUNK_SIZE,
+                UPLOAD_MAX_ATTEMPTS, UPLOAD_RETRY_DELAY, UPLOAD_DEDUP_CHECK);
+        this.jobQueueStore = new JobQueueStore(getJobDBHelper());
+        this.resourceSampler = new ResourceSampler();
+        this.jobStatsWriter = new JobStatsWriter(getJobDBHelper(), STATS_BATCH_SIZE, STATS_FLUSH_INTERVAL,
+                jobMetrics.get(JobMetrics.DB_WRITE));
+        this.metricsExporter = new MetricsExporter(this, jobMetrics, client);
+        if (jobProcessPool != null)
+            jobProcessPool.start();
+        metricsExporter.start();
+        capacityGovernor.start();
+        StartupTimings.mark(StartupTimings.ENGINE_READY);
+        session.open();
+    }
+
+    // after every connect, also when the session reconnected on its own
+    private void onConnected() {
+        StartupTimings.mark(StartupTimings.BROKER_CONNECTED);
+        resumePendingJobs();
+        if (terminating)
+            return;
+        onSuccess("offering %s execution slots and %s prefetch slots >\n%s",
+                capacityGovernor.getSlots(), PIPELINE_DEPTH, capacityGovernor.getReason());
+        if (capacityGovernor.getSlots() > 0)
+            register();
+        else
+            onError("not registering >\n%s", capacityGovernor.getReason());
+        announceCapacity();
     }
 
     private void disconnect() throws MqttException {
-        if (client.isConnected()) {
-            client.disconnect();
-            dashBoardActivity.onSuccess("disconnected from the broker");
-        }
+        boolean connected = session.isConnected();
+        session.close();
+        if (connected)
+            onSuccess("disconnected from the broker");
     }
 
-    private String register() throws MqttException {
-        String deviceId = unique();
-        client.publish(REGISTRATION_TOPIC, deviceId.getBytes(), QOS, false);
-        String m = String.format("device registered as %s", deviceId);
-        dashBoardActivity.onSuccess(m);
-        return deviceId;
+    // payload: device_id + space + free_slots
+    private void register() {
+        int free = freeSlots();
+        session.publish(REGISTRATION_TOPIC, (deviceId + " " + free).getBytes(), OUTBOX_KEY_REGISTRATION);
+        registered = true;
+        onSuccess("device registered as %s with %s free slots", deviceId, free);
+    }
+
+    // execution slots the governor allows plus the jobs accepted ahead of them for prefetching
+    private int offeredSlots() {
+        int slots = capacityGovernor.getSlots();
+        return slots > 0 ? slots + PIPELINE_DEPTH : 0;
+    }
+
+    private int freeSlots() {
+        return Math.max(0, offeredSlots() - busySlots.get());
     }
 
-    private void unregister(String deviceId) throws MqttException {
-        client.publish(UNREGISTRATION_TOPIC, deviceId.getBytes(), QOS, false);
-        String m = String.format("unregistered %s", deviceId);
-        dashBoardActivity.onSuccess(m);
+    // payload: device_id + space + free_slots, 0 free slots means busy
+    private void announceCapacity() {
+        int free = freeSlots();
+        session.publish(CAPACITY_TOPIC, (deviceId + " " + free).getBytes(), OUTBOX_KEY_CAPACITY);
+        onSuccess("announced %s free slots", free);
     }
 
-    private void listen(String topic) throws MqttException {
-        MessageListener listener = new MessageListener();
-        client.subscribe(topic, QOS, listener);
-        String m = String.format("listening to %s", topic);
-        dashBoardActivity.onSuccess(m);
+    // payload: device_id + space + job_id + space + fraction
+    private void reject(String jobId, int fraction) {
+        session.publish(REJECTION_TOPIC, (deviceId + " " + jobId + " " + fraction).getBytes(), null);
+    }
+
+    private void unregister(String deviceId) {
+        registered = false;
+        session.publish(UNREGISTRATION_TOPIC, deviceId.getBytes(), OUTBOX_KEY_REGISTRATION);
+        onSuccess("unregistered %s", deviceId);
+    }
+
+    private void listen(String topic, IMqttMessageListener listener) throws MqttException {
+        session.subscribe(topic, listener);
+        onSuccess("listening to %s", topic);
     }
 
     private void unsubscribe(String topic) throws MqttException {
-        client.unsubscribe(topic);
-        String m = String.format("unsubscribed %s", topic);
-        dashBoardActivity.onSuccess(m);
+        session.unsubscribe(topic);
+        onSuccess("unsubscribed %s", topic);
     }
 
-    private void register_and_listen() {
-        String topic;
-        try {
-            topic = register();
-            deviceId = topic;
-        } catch (MqttException e) {
-            dashBoardActivity.onError(e.getMessage());
-            try {
-                disconnect();
-            } catch (MqttException e2) {
-                dashBoardActivity.onError(e2.getMessage());
+    private boolean submit(Job job) {
+        return submit(Collections.singletonList(job));
+    }
+
+    private boolean submit(List<Job> jobs) {
+        busySlots.addAndGet(jobs.size());
+        for (int i = 0; i < jobs.size(); i++)
+            executionLocks.acquire();
+        boolean accepted = jobs.size() == 1 ? submitStages(jobs.get(0)) : submitBatch(jobs);
+        if (!accepted) {
+            busySlots.addAndGet(-jobs.size());
+            for (int i = 0; i < jobs.size(); i++)
+                executionLocks.release();
+        } else {
+            announceCapacity();
+        }
+        return accepted;
+    }
+
+    private boolean submitStages(final Job job) {
+        if (PIPELINE_DEPTH <= 0) {
+            return jobExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        job.run();
+                    } catch (RuntimeException | LinkageError e) {
+                        crashed(job, e);
+                    } finally {
+                        onJobFinished(job);
+                        executionLocks.release();
+                    }
+                }
+            });
+        }
+
+        final Runnable execute = executeStage(job, null);
+        return fetchExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                if (!fetch(job)) {
+                    onJobFinished(job);
+                    executionLocks.release();
+                    return;
+                }
+                // a full backlog keeps this fetch slot busy, which holds back further prefetching
+                if (!jobExecutor.submit(execute))
+                    execute.run();
+            }
+        });
+    }
+
+    // the fractions of a batch share their executable, the first fetch downloads and loads it and
+    // the others find it in the cache. each fraction is handed to the batch pool as soon as it is
+    // fetched, idle workers steal the queued ones, and uploads once it executed, unless the
+    // executable can combine outputs, then the batch uploads one result. no more fractions execute
+    // at once than the governor allows slots when the batch starts, a fetched one waits for a slot.
+    private boolean submitBatch(final List<Job> jobs) {
+        return fetchExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                final Semaphore running = new Semaphore(Math.max(1, capacityGovernor.getSlots()));
+                Combiner combiner = null;
+                for (int i = 0; i < jobs.size(); i++) {
+                    Job job = jobs.get(i);
+                    if (!fetch(job)) {
+                        onJobFinished(job);
+                        handOver(combiner != null ? combiner.done(job, false) : null);
+                        continue;
+                    }
+                    if (combiner == null && i < jobs.size() - 1 &&
+                            job.getExecutable() != null && job.getExecutable().getCombineMethod() != null)
+                        combiner = new Combiner(JobExecutionService.this, job, jobs.size() - i);
+                    final Runnable stage = executeStage(job, combiner);
+                    Runnable execute = new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                stage.run();
+                            } finally {
+                                running.release();
+                            }
+                        }
+                    };
+                    running.acquireUninterruptibly();
+                    try {
+                        batchPool.execute(execute);
+                    } catch (RejectedExecutionException e) {
+                        execute.run();
+                    }
+                }
+            }
+        });
+    }
+
+    // combiner is null if the result is uploaded on its own
+    private Runnable executeStage(final Job job, final Combiner combiner) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                boolean executed = false;
+                try {
+                    executed = job.execute();
+                } catch (RuntimeException | LinkageError e) {
+                    crashed(job, e);
+                } finally {
+                    // the slot is offered again while the result is still uploading
+                    onJobFinished(job);
+                }
+                Runnable upload = null;
+                try {
+                    if (combiner != null)
+                        upload = combiner.done(job, executed);
+                    else if (executed)
+                        upload = new Runnable() {
+                            @Override
+                            public void run() {
+                                job.upload();
+                            }
+                        };
+                } catch (RuntimeException | LinkageError e) {
+                    crashed(job, e);
+                } finally {
+                    handOver(upload);
+                }
             }
+        };
+    }
+
+    // fetch and execute report the failures of a job themselves, this catches what escapes them
+    // so that the slot and the execution lock are always given back
+    private boolean fetch(Job job) {
+        try {
+            return job.fetch();
+        } catch (RuntimeException | LinkageError e) {
+            crashed(job, e);
+            return false;
+        }
+    }
+
+    private void crashed(Job job, Throwable e) {
+        onError("job %s fraction %s crashed >\n%s", job.getJobId(), job.getFraction(), e);
+        job.discard();
+    }
+
+    // runs upload on the upload stage, the execution lock of the job is released once it is done
+    private void handOver(final Runnable upload) {
+        if (upload == null) {
+            executionLocks.release();
             return;
         }
+        Runnable stage = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    upload.run();
+                } catch (RuntimeException | LinkageError e) {
+                    onError("upload crashed >\n%s", e);
+                } finally {
+                    executionLocks.release();
+                }
+            }
+        };
+        if (!uploadExecutor.submit(stage))
+            stage.run();
+    }
 
-        try {
-            listen(topic);
-        } catch (MqttException e) {
-            dashBoardActivity.onError(e.getMessage());
-            try {
-                unregister(topic);
-                disconnect();
-            } catch (MqttException e2) {
-                dashBoardActivity.onError(e2.getMessage());
+    private void resumePendingJobs() {
+        if (resumed)
+            return;
+        resumed = true;
+        jobQueueStore.deleteDone();
+        Map<String, Job> jobs = new LinkedHashMap<>();
+        for (JobQueueStore.Entry entry : jobQueueStore.pending()) {
+            Job job = Job.resume(this, entry);
+            // a job that took the process down with it every time is handed back to the server
+            if (entry.getResumes() >= JOB_MAX_RESUMES) {
+                onError("giving up job %s fraction %s after %s resumes",
+                        entry.getJobId(), entry.getFraction(), entry.getResumes());
+                job.discard();
+                reject(entry.getJobId(), entry.getFraction());
+                continue;
+            }
+            jobQueueStore.markResumed(entry.getRowId(), entry.getResumes() + 1);
+            onSuccess("resuming job >\nid: %s\nfraction: %s\nstate: %s",
+                    entry.getJobId(), entry.getFraction(), entry.getState());
+            jobs.put(entry.getJobId() + "/" + entry.getFraction(), job);
+        }
+        // fractions in a kept combined result only need that uploaded
+        for (Runnable upload : Combiner.resumeKept(this, jobs)) {
+            if (!uploadExecutor.submit(upload))
+                upload.run();
+        }
+        for (Map.Entry<String, Job> e : jobs.entrySet()) {
+            Job job = e.getValue();
+            activeJobs.put(e.getKey(), job);
+            if (!submit(job)) {
+                onError("job queue is full, dropped resumed job %s fraction %s",
+                        job.getJobId(), job.getFraction());
+                job.discard();
+                activeJobs.remove(e.getKey());
             }
         }
     }
 
+    private void onJobFinished(Job job) {
+        activeJobs.remove(job.getJobId() + "/" + job.getFraction());
+        busySlots.decrementAndGet();
+        capacityGovernor.onJobExecuted(job.getJobId(), job.getConsumedTime());
+        if (!terminating)
+            announceCapacity();
+    }
+
+    // a device without slots leaves the registry until it can take jobs again, running jobs finish
+    private void applyCapacity(int slots, String reason) {
+        onSuccess("capacity changed >\nexecution slots: %s\nreason: %s", slots, reason);
+        if (slots > 0)
+            jobExecutor.setSlots(slots);
+        if (terminating || !session.isConnected())
+            return;
+        if (slots == 0 && registered)
+            unregister(deviceId);
+        else if (slots > 0 && !registered)
+            register();
+        announceCapacity();
+    }
+
+    // the id is generated once and kept across restarts, it is also the topic jobs arrive on
+    private String loadDeviceId() {
+        SharedPreferences preferences = context.getSharedPreferences(DEVICE_PREFERENCES,
+                Context.MODE_PRIVATE);
+        String id = preferences.getString(DEVICE_ID, null);
+        if (id == null) {
+            id = unique();
+            preferences.edit().putString(DEVICE_ID, id).apply();
+        }
+        return id;
+    }
+
     private String unique() {
         long MSB = 0x8000000000000000L;
         return Long.toHexString(MSB | numberGenerator.nextLong()) +
@@ -170,35 +595,107 @@ public class JobExecutionService {
         return WEB_ADDRESS + relativeAddress.trim();
     }
 
-    private String getLastPartOfStringBySlash(String input) {
-        String[] arr = input.split("/");
-        return arr[arr.length - 1];
-    }
-
-    public void terminate() throws MqttException {
+    // onTerminated runs on the drain thread once every job is done and the client disconnected
+    public void terminate(final Runnable onTerminated) throws MqttException {
+        terminating = true;
+        capacityGovernor.stop();
         unsubscribe(deviceId);
+        unsubscribe(CANCEL_TOPIC);
         unregister(deviceId);
-        disconnect();
-        dashBoardActivity.onSuccess("terminated");
+        // let running and queued jobs upload their results before the connection goes away
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    // stages are drained in pipeline order, so none of them hands work to a stopped one
+                    boolean drained = fetchExecutor.drain(DRAIN_TIMEOUT);
+                    drained &= jobExecutor.drain(DRAIN_TIMEOUT);
+                    batchPool.shutdown();
+                    drained &= batchPool.awaitTermination(DRAIN_TIMEOUT, TimeUnit.MILLISECONDS);
+                    drained &= uploadExecutor.drain(DRAIN_TIMEOUT);
+                    if (!drained)
+                        onError("timed out while draining running jobs");
+                    watchdog.shutdownNow();
+                    resourceSampler.shutdown();
+                    if (jobProcessPool != null)
+                        jobProcessPool.stop();
+                    if (!jobStatsWriter.close(DRAIN_TIMEOUT))
+                        onError("timed out while writing job stats");
+                    metricsExporter.stop();
+                    disconnect();
+                    onSuccess("terminated");
+                } catch (InterruptedException | MqttException e) {
+                    onError(e.getMessage());
+                } finally {
+                    executionLocks.releaseAll();
+                    onTerminated.run();
+                }
+            }
+        }, "job-drain").start();
+    }
+
+    public String getDeviceId() {
+        return deviceId;
     }
 
     public File getCacheDir() {
-        return dashBoardActivity.getCacheDir();
+        return context.getCacheDir();
     }
 
-    public JobDBHelper getJobDBHelper() {
-        return dashBoardActivity.getDbHelper();
+    public OkHttpClient getHttpClient() {
+        return httpClient;
     }
 
-    public String getDeviceId() {
-        return deviceId;
+    public Downloader getDownloader() {
+        return downloader;
+    }
+
+    public ResultUploader getResultUploader() {
+        return resultUploader;
+    }
+
+    public ExecutableCache getExecutableCache() {
+        return executableCache;
+    }
+
+    public ResourceSampler getResourceSampler() {
+        return resourceSampler;
+    }
+
+    public ScheduledExecutorService getWatchdog() {
+        return watchdog;
+    }
+
+    public JobProcessPool getJobProcessPool() {
+        return jobProcessPool;
+    }
+
+    public JobMetrics getJobMetrics() {
+        return jobMetrics;
+    }
+
+    public JobStatsWriter getJobStatsWriter() {
+        return jobStatsWriter;
+    }
+
+    public JobQueueStore getJobQueueStore() {
+        return jobQueueStore;
+    }
+
+    public JobDBHelper getJobDBHelper() {
+        return jobDBHelper;
     }
 
-    public void onSuccess(String successMessage) {
-        dashBoardActivity.onSuccess(successMessage);
+    // the message is only formatted if it is displayed
+    @Override
+    public void onSuccess(String format, Object... args) {
+        Timber.d("======================= " + format, args);
+        eventLog.add(EventLog.TYPE_SUCCESS, format, args);
     }
 
-    public void onError(String errorMessage) {
-        dashBoardActivity.onError(errorMessage);
+    @Override
+    public void onError(String format, Object... args) {
+        Timber.e("======================= " + format, args);
+        eventLog.add(EventLog.TYPE_ERROR, format, args);
     }
 }
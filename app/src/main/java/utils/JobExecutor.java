@@ -0,0 +1,125 @@
+package utils;
+
+import android.os.Build;
+import android.os.Process;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// runs one pipeline stage of the jobs on a fixed number of slots with a bounded backlog, so the
+// mqtt callback thread only hands jobs over and never executes them itself
+public class JobExecutor {
+
+    private final ThreadPoolExecutor executor;
+    private volatile int slots;
+
+    public JobExecutor(String name, int slots, int queueCapacity) {
+        this.slots = slots > 0 ? slots : Runtime.getRuntime().availableProcessors();
+        executor = new ThreadPoolExecutor(this.slots, this.slots, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(Math.max(1, queueCapacity)),
+                new SlotThreadFactory(name));
+    }
+
+    // an unbounded pool for short tasks of similar size, one thread per core if parallelism is 0.
+    // every worker has its own deque and an idle one takes tasks from the others, so a worker that
+    // drew long tasks does not hold back the rest. before lollipop it falls back to a shared queue.
+    public static ExecutorService newWorkStealingPool(String name, int parallelism) {
+        if (parallelism <= 0)
+            parallelism = Runtime.getRuntime().availableProcessors();
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP)
+            return Executors.newFixedThreadPool(parallelism, new SlotThreadFactory(name));
+        return new ForkJoinPool(parallelism, new StealingThreadFactory(name), null, true);
+    }
+
+    // returns false if every slot is busy and the backlog is full
+    public boolean submit(Runnable job) {
+        try {
+            executor.execute(job);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    // running jobs keep their thread, the pool shrinks as they finish
+    public synchronized void setSlots(int slots) {
+        slots = Math.max(1, slots);
+        if (slots > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(slots);
+            executor.setCorePoolSize(slots);
+        } else {
+            executor.setCorePoolSize(slots);
+            executor.setMaximumPoolSize(slots);
+        }
+        this.slots = slots;
+    }
+
+    public int getSlots() {
+        return slots;
+    }
+
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    public boolean isShutdown() {
+        return executor.isShutdown();
+    }
+
+    // stops accepting new jobs and waits for the running and queued ones to finish
+    public boolean drain(long timeoutMillis) throws InterruptedException {
+        executor.shutdown();
+        return executor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private static class SlotThreadFactory implements ThreadFactory {
+        private final String name;
+        private final AtomicInteger count = new AtomicInteger();
+
+        private SlotThreadFactory(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            Runnable background = new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            };
+            return new Thread(background, name + "-" + count.incrementAndGet());
+        }
+    }
+
+    private static class StealingThreadFactory implements ForkJoinPool.ForkJoinWorkerThreadFactory {
+        private final String name;
+        private final AtomicInteger count = new AtomicInteger();
+
+        private StealingThreadFactory(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+            ForkJoinWorkerThread thread = new ForkJoinWorkerThread(pool) {
+                @Override
+                protected void onStart() {
+                    super.onStart();
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                }
+            };
+            thread.setName(name + "-" + count.incrementAndGet());
+            return thread;
+        }
+    }
+}
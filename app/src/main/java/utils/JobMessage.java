@@ -0,0 +1,90 @@
+package utils;
+
+// one job descriptor, decoded from either the binary or the legacy text job message
+public class JobMessage {
+
+    private final String jobId;
+    private final String executablePath;
+    private final String inputPath;
+    private final int[] fractions;
+    private final int totalFractions;
+    private final String executableSha256;
+    private final long executableSize;
+    private final int priority;
+    private final long deadline;
+    private final long timeout;
+    private final int attempt;
+
+    JobMessage(String jobId, String executablePath, String inputPath, int[] fractions, int totalFractions,
+               String executableSha256, long executableSize, int priority, long deadline,
+               long timeout, int attempt) {
+        this.jobId = jobId;
+        this.executablePath = executablePath;
+        this.inputPath = inputPath;
+        this.fractions = fractions;
+        this.totalFractions = totalFractions;
+        this.executableSha256 = executableSha256;
+        this.executableSize = executableSize;
+        this.priority = priority;
+        this.deadline = deadline;
+        this.timeout = timeout;
+        this.attempt = attempt;
+    }
+
+    public String getJobId() {
+        return jobId;
+    }
+
+    // relative to WEB_ADDRESS
+    public String getExecutablePath() {
+        return executablePath;
+    }
+
+    // relative to WEB_ADDRESS
+    public String getInputPath() {
+        return inputPath;
+    }
+
+    public String getExecutableFileName() {
+        return executablePath.substring(executablePath.lastIndexOf('/') + 1);
+    }
+
+    // one fraction, or several the device runs as a batch, in ascending order without duplicates
+    public int[] getFractions() {
+        return fractions;
+    }
+
+    public int getTotalFractions() {
+        return totalFractions;
+    }
+
+    // hex encoded, null if the message did not carry one
+    public String getExecutableSha256() {
+        return executableSha256;
+    }
+
+    // bytes, -1 if unknown
+    public long getExecutableSize() {
+        return executableSize;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    // milliseconds since the epoch, 0 if the job has no deadline
+    public long getDeadline() {
+        return deadline;
+    }
+
+    // milliseconds the executable may run, 0 if it is not limited
+    public long getTimeout() {
+        return timeout;
+    }
+
+    // 0 for the first execution of the fraction, higher for backup copies the server sent to
+    // other devices because the earlier attempts were late
+    public int getAttempt() {
+        return attempt;
+    }
+}
@@ -0,0 +1,285 @@
+package utils;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+// decodes job messages straight from the mqtt payload without splitting it into strings first.
+//
+// binary format, version 1:
+//   magic 0x4d 0x4a ("MJ"), version byte, varint descriptor count, then per descriptor a varint
+//   byte length followed by its fields. a field starts with a varint key (field_number << 3 |
+//   wire_type) like in protobuf; wire type 0 is a varint, 2 is a varint length plus bytes. unknown
+//   fields are skipped so new ones can be added without a version bump.
+//     1 job id (utf-8)                                 6 executable sha-256 (32 bytes)
+//     2 executable path (utf-8)                        7 executable size (varint)
+//     3 input path (utf-8)                             8 priority (varint)
+//     4 fraction (varint)                              9 deadline, epoch milliseconds (varint)
+//     5 total fractions (varint)                      10 execution timeout, milliseconds (varint)
+//                                                      11 attempt (varint)
+//                                                      12 end of the fraction range, exclusive (varint)
+//                                                      13 fractions (bytes, packed varints)
+//                                                      14 binary job id (bytes, hex encoded)
+//   a descriptor carries the job id as text in 1 or as raw bytes, e.g. a uuid, in 14. it assigns
+//   the single fraction 4, the range from 4 to 12, or the list in 13 instead of either; several
+//   fractions run as one batch on the device.
+//
+// anything without the magic is read as the legacy text format:
+//   relative_executable_address + space + relative_input_address + space + fraction + space + total_fractions + space + uuid
+public final class JobMessageParser {
+
+    public static class MalformedJobMessageException extends Exception {
+        MalformedJobMessageException(String message) {
+            super(message);
+        }
+    }
+
+    public static final byte MAGIC_0 = 0x4d;
+    public static final byte MAGIC_1 = 0x4a;
+    public static final byte VERSION = 1;
+
+    public static final int FIELD_JOB_ID = 1;
+    public static final int FIELD_EXECUTABLE_PATH = 2;
+    public static final int FIELD_INPUT_PATH = 3;
+    public static final int FIELD_FRACTION = 4;
+    public static final int FIELD_TOTAL_FRACTIONS = 5;
+    public static final int FIELD_EXECUTABLE_SHA256 = 6;
+    public static final int FIELD_EXECUTABLE_SIZE = 7;
+    public static final int FIELD_PRIORITY = 8;
+    public static final int FIELD_DEADLINE = 9;
+    public static final int FIELD_TIMEOUT = 10;
+    public static final int FIELD_ATTEMPT = 11;
+    public static final int FIELD_FRACTION_END = 12;
+    public static final int FIELD_FRACTIONS = 13;
+    public static final int FIELD_JOB_ID_BYTES = 14;
+
+    public static final int WIRE_VARINT = 0;
+    public static final int WIRE_BYTES = 2;
+
+    // fractions one descriptor may assign, more than any device has slots for
+    public static final int MAX_BATCH_FRACTIONS = 1024;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private JobMessageParser() {
+    }
+
+    public static List<JobMessage> parse(byte[] payload) throws MalformedJobMessageException {
+        if (payload.length >= 3 && payload[0] == MAGIC_0 && payload[1] == MAGIC_1)
+            return parseBinary(payload);
+        List<JobMessage> jobs = new ArrayList<>(1);
+        jobs.add(parseText(payload));
+        return jobs;
+    }
+
+    private static List<JobMessage> parseBinary(byte[] p) throws MalformedJobMessageException {
+        if (p[2] != VERSION)
+            throw new MalformedJobMessageException("unsupported job message version " + p[2]);
+        // pos[0] is the read position, shared with the helpers to avoid allocating a reader
+        int[] pos = {3};
+        long count = readVarint(p, pos, p.length);
+        if (count < 0 || count > p.length)
+            throw new MalformedJobMessageException("invalid descriptor count " + count);
+        List<JobMessage> jobs = new ArrayList<>((int) count);
+        for (long i = 0; i < count; i++) {
+            long length = readVarint(p, pos, p.length);
+            if (length < 0 || pos[0] + length > p.length)
+                throw new MalformedJobMessageException("descriptor " + i + " exceeds the message");
+            jobs.add(parseDescriptor(p, pos, pos[0] + (int) length));
+        }
+        return jobs;
+    }
+
+    private static JobMessage parseDescriptor(byte[] p, int[] pos, int end) throws MalformedJobMessageException {
+        String jobId = null;
+        String executablePath = null;
+        String inputPath = null;
+        long fraction = -1;
+        long fractionEnd = -1;
+        int[] fractions = null;
+        long totalFractions = -1;
+        String sha256 = null;
+        long size = -1;
+        long priority = 0;
+        long deadline = 0;
+        long timeout = 0;
+        long attempt = 0;
+        while (pos[0] < end) {
+            long key = readVarint(p, pos, end);
+            int field = (int) (key >>> 3);
+            int wireType = (int) (key & 0x7);
+            if (wireType == WIRE_VARINT) {
+                long value = readVarint(p, pos, end);
+                switch (field) {
+                    case FIELD_FRACTION:
+                        fraction = value;
+                        break;
+                    case FIELD_FRACTION_END:
+                        fractionEnd = value;
+                        break;
+                    case FIELD_TOTAL_FRACTIONS:
+                        totalFractions = value;
+                        break;
+                    case FIELD_EXECUTABLE_SIZE:
+                        size = value;
+                        break;
+                    case FIELD_PRIORITY:
+                        priority = value;
+                        break;
+                    case FIELD_DEADLINE:
+                        deadline = value;
+                        break;
+                    case FIELD_TIMEOUT:
+                        timeout = value;
+                        break;
+                    case FIELD_ATTEMPT:
+                        attempt = value;
+                        break;
+                    default:
+                        break;
+                }
+            } else if (wireType == WIRE_BYTES) {
+                long length = readVarint(p, pos, end);
+                if (length < 0 || pos[0] + length > end)
+                    throw new MalformedJobMessageException("field " + field + " exceeds its descriptor");
+                int start = pos[0];
+                int n = (int) length;
+                switch (field) {
+                    case FIELD_JOB_ID:
+                        jobId = new String(p, start, n, UTF_8);
+                        break;
+                    case FIELD_JOB_ID_BYTES:
+                        jobId = hex(p, start, n);
+                        break;
+                    case FIELD_EXECUTABLE_PATH:
+                        executablePath = new String(p, start, n, UTF_8);
+                        break;
+                    case FIELD_INPUT_PATH:
+                        inputPath = new String(p, start, n, UTF_8);
+                        break;
+                    case FIELD_EXECUTABLE_SHA256:
+                        if (n != 32)
+                            throw new MalformedJobMessageException("executable sha-256 of " + n + " bytes");
+                        sha256 = hex(p, start, n);
+                        break;
+                    case FIELD_FRACTIONS:
+                        fractions = readPacked(p, start, start + n);
+                        break;
+                    default:
+                        break;
+                }
+                pos[0] += n;
+            } else {
+                throw new MalformedJobMessageException("unsupported wire type " + wireType);
+            }
+        }
+        if (jobId == null || executablePath == null || inputPath == null ||
+                (fraction < 0 && fractions == null) || totalFractions <= 0 || totalFractions > Integer.MAX_VALUE)
+            throw new MalformedJobMessageException("descriptor lacks a required field");
+        if (fractions == null)
+            fractions = range(fraction, fractionEnd >= 0 ? fractionEnd : fraction + 1);
+        for (int i = 0; i < fractions.length; i++) {
+            if (fractions[i] >= totalFractions || (i > 0 && fractions[i] <= fractions[i - 1]))
+                throw new MalformedJobMessageException("fractions must ascend below the total fractions");
+        }
+        return new JobMessage(jobId, executablePath, inputPath, fractions, (int) totalFractions,
+                sha256, size, (int) Math.min(priority, Integer.MAX_VALUE), deadline, timeout,
+                (int) Math.min(attempt, Integer.MAX_VALUE));
+    }
+
+    private static JobMessage parseText(byte[] p) throws MalformedJobMessageException {
+        // start and end offsets of the five space separated tokens
+        int[] bounds = new int[10];
+        int token = 0;
+        int i = 0;
+        int end = p.length;
+        while (end > 0 && isSpace(p[end - 1]))
+            end--;
+        while (i < end && token < 5) {
+            while (i < end && isSpace(p[i]))
+                i++;
+            bounds[token * 2] = i;
+            while (i < end && !isSpace(p[i]))
+                i++;
+            bounds[token * 2 + 1] = i;
+            token++;
+        }
+        if (token < 5 || bounds[9] == bounds[8] || i != end)
+            throw new MalformedJobMessageException("expected 5 space separated fields");
+        return new JobMessage(
+                new String(p, bounds[8], bounds[9] - bounds[8], UTF_8),
+                new String(p, bounds[0], bounds[1] - bounds[0], UTF_8),
+                new String(p, bounds[2], bounds[3] - bounds[2], UTF_8),
+                new int[]{parseInt(p, bounds[4], bounds[5])},
+                parseInt(p, bounds[6], bounds[7]),
+                null, -1, 0, 0, 0, 0);
+    }
+
+    private static long readVarint(byte[] p, int[] pos, int end) throws MalformedJobMessageException {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (pos[0] >= end)
+                throw new MalformedJobMessageException("truncated varint");
+            byte b = p[pos[0]++];
+            result |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0)
+                return result;
+        }
+        throw new MalformedJobMessageException("varint is too long");
+    }
+
+    private static int[] range(long start, long end) throws MalformedJobMessageException {
+        if (end <= start || end - start > MAX_BATCH_FRACTIONS || end > Integer.MAX_VALUE)
+            throw new MalformedJobMessageException("invalid fraction range " + start + "-" + end);
+        int[] fractions = new int[(int) (end - start)];
+        for (int i = 0; i < fractions.length; i++)
+            fractions[i] = (int) start + i;
+        return fractions;
+    }
+
+    private static int[] readPacked(byte[] p, int start, int end) throws MalformedJobMessageException {
+        int[] pos = {start};
+        int[] values = new int[Math.min(end - start, MAX_BATCH_FRACTIONS)];
+        int count = 0;
+        while (pos[0] < end) {
+            if (count == values.length)
+                throw new MalformedJobMessageException("more than " + MAX_BATCH_FRACTIONS + " fractions");
+            long value = readVarint(p, pos, end);
+            if (value > Integer.MAX_VALUE)
+                throw new MalformedJobMessageException("invalid fraction " + value);
+            values[count++] = (int) value;
+        }
+        if (count == 0)
+            throw new MalformedJobMessageException("empty fraction list");
+        int[] fractions = new int[count];
+        System.arraycopy(values, 0, fractions, 0, count);
+        return fractions;
+    }
+
+    private static int parseInt(byte[] p, int start, int end) throws MalformedJobMessageException {
+        if (start == end || end - start > 9)
+            throw new MalformedJobMessageException("invalid number");
+        int value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = p[i] - '0';
+            if (digit < 0 || digit > 9)
+                throw new MalformedJobMessageException("invalid number");
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+    }
+
+    private static String hex(byte[] p, int start, int length) {
+        char[] chars = new char[length * 2];
+        for (int i = 0; i < length; i++) {
+            chars[i * 2] = HEX[(p[start + i] >> 4) & 0xf];
+            chars[i * 2 + 1] = HEX[p[start + i] & 0xf];
+        }
+        return new String(chars);
+    }
+}
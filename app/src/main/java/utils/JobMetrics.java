@@ -0,0 +1,95 @@
+package utils;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+// one latency histogram per pipeline stage of a job, shared by all jobs of the process
+public class JobMetrics {
+
+    // from accepting the job until its first stage starts
+    public static final String QUEUE_WAIT = "queue_wait";
+    // fetching or revalidating the executable, only on a cache miss
+    public static final String DOWNLOAD = "download";
+    // opening the dex file and loading the job class, only on a cache miss
+    public static final String DEX_LOAD = "dex_load";
+    public static final String CLASS_INIT = "class_init";
+    public static final String EXECUTE = "execute";
+    // merging one output into the combined result of a batch
+    public static final String COMBINE = "combine";
+    public static final String UPLOAD = "upload";
+    // one stats batch transaction
+    public static final String DB_WRITE = "db_write";
+
+    private static final String[] STAGES = {QUEUE_WAIT, DOWNLOAD, DEX_LOAD, CLASS_INIT, EXECUTE, COMBINE, UPLOAD, DB_WRITE};
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+    private static final String METRIC = "mdcp_job_stage_seconds";
+
+    private final Map<String, LatencyHistogram> histograms;
+
+    public JobMetrics() {
+        Map<String, LatencyHistogram> m = new LinkedHashMap<>();
+        for (String stage : STAGES)
+            m.put(stage, new LatencyHistogram());
+        histograms = Collections.unmodifiableMap(m);
+    }
+
+    public LatencyHistogram get(String stage) {
+        return histograms.get(stage);
+    }
+
+    public void record(String stage, long nanos) {
+        histograms.get(stage).record(nanos);
+    }
+
+    // records the time passed since startNanos, a value of System.nanoTime()
+    public void recordSince(String stage, long startNanos) {
+        record(stage, System.nanoTime() - startNanos);
+    }
+
+    // prometheus text exposition format 0.0.4
+    public String toPrometheus() {
+        StringBuilder sb = new StringBuilder(2048);
+        sb.append("# HELP ").append(METRIC).append(" Duration of the pipeline stages of jobs.\n");
+        sb.append("# TYPE ").append(METRIC).append(" summary\n");
+        for (Map.Entry<String, LatencyHistogram> e : histograms.entrySet()) {
+            LatencyHistogram.Snapshot s = e.getValue().snapshot();
+            String stage = e.getKey();
+            for (double q : QUANTILES) {
+                sb.append(METRIC).append("{stage=\"").append(stage).append("\",quantile=\"").append(q)
+                        .append("\"} ").append(seconds(s.getValueAtPercentile(q * 100))).append('\n');
+            }
+            sb.append(METRIC).append("_sum{stage=\"").append(stage).append("\"} ")
+                    .append(seconds(s.getSum())).append('\n');
+            sb.append(METRIC).append("_count{stage=\"").append(stage).append("\"} ")
+                    .append(s.getCount()).append('\n');
+        }
+        sb.append("# HELP ").append(METRIC).append("_max Longest duration of the pipeline stages of jobs.\n");
+        sb.append("# TYPE ").append(METRIC).append("_max gauge\n");
+        for (Map.Entry<String, LatencyHistogram> e : histograms.entrySet()) {
+            sb.append(METRIC).append("_max{stage=\"").append(e.getKey()).append("\"} ")
+                    .append(seconds(e.getValue().snapshot().getMax())).append('\n');
+        }
+        return sb.toString();
+    }
+
+    // one line per stage: stage + space + count + space + p50 + space + p90 + space + p99 + space + max,
+    // durations in microseconds
+    public String toSummary() {
+        StringBuilder sb = new StringBuilder(512);
+        for (Map.Entry<String, LatencyHistogram> e : histograms.entrySet()) {
+            LatencyHistogram.Snapshot s = e.getValue().snapshot();
+            sb.append(e.getKey()).append(' ').append(s.getCount())
+                    .append(' ').append(s.getValueAtPercentile(50) / 1000)
+                    .append(' ').append(s.getValueAtPercentile(90) / 1000)
+                    .append(' ').append(s.getValueAtPercentile(99) / 1000)
+                    .append(' ').append(s.getMax() / 1000).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static String seconds(long nanos) {
+        return String.format(Locale.US, "%.9f", nanos / 1e9);
+    }
+}
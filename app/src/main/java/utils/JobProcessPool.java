@@ -0,0 +1,345 @@
+package utils;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.ParcelFileDescriptor;
+import android.os.Process;
+import android.os.RemoteException;
+
+import com.nxtgizmo.androidmqttdemo.worker.JobProcessService;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.nxtgizmo.androidmqttdemo.mqtt_app.AppConfig.CANCEL_GRACE_PERIOD;
+import static com.nxtgizmo.androidmqttdemo.mqtt_app.AppConfig.JOB_PROCESS_CONNECT_TIMEOUT;
+import static com.nxtgizmo.androidmqttdemo.mqtt_app.AppConfig.JOB_PROCESS_MAX_RSS;
+
+// keeps a few job processes bound and warm and hands each execution to an idle one. a process that
+// dies fails the job it was running and is restarted by the system, one whose memory grew past
+// JOB_PROCESS_MAX_RSS is killed once it is idle so the next job starts with a fresh heap.
+public class JobProcessPool {
+
+    public static class Result {
+        private final Bundle data;
+
+        private Result(Bundle data) {
+            this.data = data;
+        }
+
+        // milliseconds
+        public long getConsumedTime() {
+            return data.getLong(JobProcessService.KEY_CONSUMED_TIME, -1);
+        }
+
+        // nanoseconds
+        public long getClassInitTime() {
+            return data.getLong(JobProcessService.KEY_CLASS_INIT_TIME, -1);
+        }
+
+        public ResourceSampler.Usage getUsage() {
+            Bundle usage = data.getBundle(JobProcessService.KEY_USAGE);
+            return usage != null ? ResourceSampler.Usage.fromBundle(usage) : null;
+        }
+
+        // null if the executable returned normally
+        public String getError() {
+            return data.getString(JobProcessService.KEY_ERROR);
+        }
+    }
+
+    // one execution, created by newCall() so it can be cancelled from another thread.
+    //
+    // once the request went out, the call holds its slot until the process answers or dies, also
+    // when the executing thread is interrupted. an abort therefore runs as: the job interrupts the
+    // waiting thread and cancels the call, the process is asked to interrupt the executable, after
+    // CANCEL_GRACE_PERIOD a process still running the call is killed, and the slot is freed when
+    // the result or the disconnect of the killed process arrives. the next job never gets a slot
+    // whose process is still busy with an abandoned call.
+    public class Call {
+        private final int requestId = nextRequestId.incrementAndGet();
+        private final CountDownLatch done = new CountDownLatch(1);
+        // the slot the request was sent to, null before and once it is released
+        private Slot slot;
+        // of the process running the call, from MSG_STARTED, -1 before
+        private int pid = -1;
+        private Bundle result;
+        private String error;
+        private boolean cancelled = false;
+        private boolean released = false;
+
+        // blocks until an idle process ran the request, see JobProcessService for the keys
+        public Result execute(Bundle request) throws IOException, InterruptedException {
+            Slot slot = acquire(this);
+            boolean sent = false;
+            try {
+                Messenger messenger;
+                synchronized (JobProcessPool.this) {
+                    if (cancelled)
+                        throw new IOException("cancelled");
+                    calls.put(requestId, this);
+                    this.slot = slot;
+                    messenger = slot.messenger;
+                }
+                Message msg = Message.obtain(null, JobProcessService.MSG_EXECUTE, requestId, 0);
+                msg.setData(request);
+                msg.replyTo = replyTo;
+                try {
+                    messenger.send(msg);
+                    sent = true;
+                } catch (RemoteException e) {
+                    throw new IOException("job process " + slot.index + " is gone", e);
+                } finally {
+                    // the process holds its own copy of the input now, closing ours lets a writer
+                    // notice when the process stops reading
+                    ParcelFileDescriptor input = request.getParcelable(JobProcessService.KEY_INPUT);
+                    if (input != null)
+                        input.close();
+                }
+                done.await();
+                if (error != null)
+                    throw new IOException(error);
+                return new Result(result);
+            } finally {
+                // a sent request releases its slot in complete()
+                if (!sent)
+                    releaseSlot(slot);
+            }
+        }
+
+        // asks the process to interrupt the executable and kills it if it is still running the
+        // call after CANCEL_GRACE_PERIOD. a call that did not start yet fails as soon as it is
+        // executed.
+        public void cancel() {
+            Messenger messenger;
+            synchronized (JobProcessPool.this) {
+                if (cancelled)
+                    return;
+                cancelled = true;
+                JobProcessPool.this.notifyAll();
+                if (slot == null || slot.messenger == null)
+                    return;
+                messenger = slot.messenger;
+            }
+            try {
+                messenger.send(Message.obtain(null, JobProcessService.MSG_CANCEL, requestId, 0));
+            } catch (RemoteException e) {
+                // the process is gone already
+            }
+            replyHandler.postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    int kill = -1;
+                    synchronized (JobProcessPool.this) {
+                        // the slot is only released once the process answered or died
+                        if (slot != null && slot.running == requestId)
+                            kill = pid > 0 ? pid : slot.pid;
+                    }
+                    if (kill > 0)
+                        Process.killProcess(kill);
+                }
+            }, CANCEL_GRACE_PERIOD);
+        }
+
+        // from the executing thread if the request never went out, otherwise from complete(). a
+        // process that dies while the request is sent may get here from both, the slot is freed once.
+        private void releaseSlot(Slot s) {
+            synchronized (JobProcessPool.this) {
+                if (released)
+                    return;
+                released = true;
+                calls.remove(requestId);
+                slot = null;
+            }
+            release(s);
+        }
+    }
+
+    private class Slot implements ServiceConnection {
+        private final int index;
+        private Messenger messenger;
+        private int pid = -1;
+        private boolean busy = false;
+        private boolean recycle = false;
+        // request id of the call executing in the process, 0 if none
+        private int running = 0;
+
+        Slot(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            synchronized (JobProcessPool.this) {
+                messenger = new Messenger(service);
+                JobProcessPool.this.notifyAll();
+            }
+        }
+
+        // the process died, the system binds it again because of BIND_AUTO_CREATE
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            int requestId;
+            synchronized (JobProcessPool.this) {
+                messenger = null;
+                pid = -1;
+                recycle = false;
+                requestId = running;
+            }
+            if (requestId != 0)
+                complete(requestId, null, "job process " + index + " died");
+        }
+    }
+
+    private final Context context;
+    private final Slot[] slots;
+    private final HandlerThread replyThread;
+    private final Handler replyHandler;
+    private final Messenger replyTo;
+    private final Map<Integer, Call> calls = new HashMap<>();
+    private final AtomicInteger nextRequestId = new AtomicInteger();
+    private boolean stopped = false;
+
+    public JobProcessPool(Context context, int processes) {
+        this.context = context;
+        // 0 means one per available core
+        if (processes <= 0)
+            processes = Runtime.getRuntime().availableProcessors();
+        slots = new Slot[Math.max(1, Math.min(processes, JobProcessService.SLOTS.length))];
+        for (int i = 0; i < slots.length; i++)
+            slots[i] = new Slot(i);
+        replyThread = new HandlerThread("job-process-replies");
+        replyThread.start();
+        replyHandler = new Handler(replyThread.getLooper(), new Handler.Callback() {
+            @Override
+            public boolean handleMessage(Message msg) {
+                if (msg.what == JobProcessService.MSG_STARTED) {
+                    started(msg.arg1, msg.arg2);
+                    return true;
+                }
+                if (msg.what == JobProcessService.MSG_RESULT) {
+                    complete(msg.arg1, msg.getData(), null);
+                    return true;
+                }
+                return false;
+            }
+        });
+        replyTo = new Messenger(replyHandler);
+    }
+
+    public int getProcesses() {
+        return slots.length;
+    }
+
+    // binds every process up front, so the first jobs do not wait for a process to start
+    public void start() {
+        for (Slot slot : slots)
+            context.bindService(new Intent(context, JobProcessService.SLOTS[slot.index]), slot,
+                    Context.BIND_AUTO_CREATE);
+    }
+
+    public void stop() {
+        synchronized (this) {
+            stopped = true;
+            notifyAll();
+        }
+        for (Slot slot : slots) {
+            try {
+                context.unbindService(slot);
+            } catch (IllegalArgumentException e) {
+                // not bound
+            }
+        }
+        replyThread.quit();
+    }
+
+    public Call newCall() {
+        return new Call();
+    }
+
+    private synchronized Slot acquire(Call call) throws IOException, InterruptedException {
+        long deadline = 0;
+        while (!stopped && !call.cancelled) {
+            boolean idle = false;
+            for (Slot slot : slots) {
+                if (slot.busy)
+                    continue;
+                idle = true;
+                if (slot.messenger != null) {
+                    slot.busy = true;
+                    slot.running = call.requestId;
+                    return slot;
+                }
+            }
+            long now = System.currentTimeMillis();
+            // waiting for a busy process is fine, waiting for one that does not come up is not
+            if (idle && deadline == 0)
+                deadline = now + JOB_PROCESS_CONNECT_TIMEOUT;
+            if (idle && now >= deadline)
+                throw new IOException("no job process connected within " + JOB_PROCESS_CONNECT_TIMEOUT + "ms");
+            if (idle)
+                wait(deadline - now);
+            else
+                wait();
+        }
+        throw new IOException(call.cancelled ? "cancelled" : "job processes stopped");
+    }
+
+    private void release(Slot slot) {
+        int pid = -1;
+        synchronized (this) {
+            slot.busy = false;
+            slot.running = 0;
+            if (slot.recycle && slot.pid > 0) {
+                pid = slot.pid;
+                // the slot is only handed out again once the new process connected
+                slot.messenger = null;
+                slot.recycle = false;
+            }
+            notifyAll();
+        }
+        if (pid > 0)
+            Process.killProcess(pid);
+    }
+
+    private synchronized void started(int requestId, int pid) {
+        Call call = calls.get(requestId);
+        if (call == null)
+            return;
+        call.pid = pid;
+        if (call.slot != null)
+            call.slot.pid = pid;
+    }
+
+    // the process answered or died, the slot of the call is free again
+    private void complete(int requestId, Bundle result, String error) {
+        Call call;
+        Slot slot;
+        synchronized (this) {
+            call = calls.get(requestId);
+            if (call == null)
+                return;
+            slot = call.slot;
+            if (result != null) {
+                Bundle usage = result.getBundle(JobProcessService.KEY_USAGE);
+                if (usage != null && ResourceSampler.Usage.fromBundle(usage).getPeakRss() > JOB_PROCESS_MAX_RSS)
+                    slot.recycle = true;
+            }
+        }
+        call.result = result;
+        call.error = error;
+        call.releaseSlot(slot);
+        call.done.countDown();
+    }
+}
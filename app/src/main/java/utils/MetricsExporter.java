@@ -0,0 +1,160 @@
+package utils;
+
+import org.eclipse.paho.android.service.MqttAndroidClient;
+import org.eclipse.paho.client.mqttv3.MqttException;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import static com.nxtgizmo.androidmqttdemo.mqtt_app.AppConfig.APP_NAME;
+import static com.nxtgizmo.androidmqttdemo.mqtt_app.AppConfig.METRICS_EXPORT_INTERVAL;
+import static com.nxtgizmo.androidmqttdemo.mqtt_app.AppConfig.METRICS_PORT;
+import static com.nxtgizmo.androidmqttdemo.mqtt_app.AppConfig.METRICS_TOPIC;
+import static com.nxtgizmo.androidmqttdemo.mqtt_app.AppConfig.QOS;
+
+// exports the job metrics three ways: every METRICS_EXPORT_INTERVAL they are written as a
+// prometheus text file to <cache>/<app name>/metrics.prom and their summary is published on
+// METRICS_TOPIC, and with a METRICS_PORT above 0 they are served over http on the loopback
+// interface, e.g. for adb forward and a prometheus scrape. the prometheus output also carries the
+// startup timings.
+public class MetricsExporter {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String FILE_NAME = "metrics.prom";
+    private static final String END_OF_HEAD = "\r\n\r\n";
+    private static final int MAX_REQUEST_HEAD = 8192;
+
+    private final JobExecutionService jobExecutionService;
+    private final JobMetrics jobMetrics;
+    private final MqttAndroidClient client;
+    private final File file;
+    private final ScheduledThreadPoolExecutor executor;
+    private ServerSocket serverSocket;
+
+    public MetricsExporter(JobExecutionService jobExecutionService, JobMetrics jobMetrics,
+                           MqttAndroidClient client) {
+        this.jobExecutionService = jobExecutionService;
+        this.jobMetrics = jobMetrics;
+        this.client = client;
+        this.file = new File(jobExecutionService.getCacheDir(), APP_NAME + "/" + FILE_NAME);
+        executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "job-metrics");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public void start() {
+        if (METRICS_EXPORT_INTERVAL > 0) {
+            executor.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    export();
+                }
+            }, METRICS_EXPORT_INTERVAL, METRICS_EXPORT_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+        if (METRICS_PORT > 0)
+            serve();
+    }
+
+    public void stop() {
+        executor.shutdownNow();
+        if (serverSocket != null) {
+            try {
+                serverSocket.close();
+            } catch (IOException e) {
+                jobExecutionService.onError(e.getMessage());
+            }
+        }
+        writeFile();
+    }
+
+    private void export() {
+        writeFile();
+        if (!client.isConnected())
+            return;
+        // payload: device_id + newline + the summary lines of JobMetrics
+        String payload = jobExecutionService.getDeviceId() + "\n" + jobMetrics.toSummary();
+        try {
+            client.publish(METRICS_TOPIC, payload.getBytes(UTF_8), QOS, false);
+        } catch (MqttException e) {
+            jobExecutionService.onError(e.getMessage());
+        }
+    }
+
+    private String prometheus() {
+        return jobMetrics.toPrometheus() + StartupTimings.toPrometheus();
+    }
+
+    // written next to the target and renamed, so a reader never sees half a snapshot
+    private void writeFile() {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            out.write(prometheus().getBytes(UTF_8));
+        } catch (IOException e) {
+            jobExecutionService.onError(e.getMessage());
+            return;
+        }
+        if (!tmp.renameTo(file))
+            jobExecutionService.onError("could not write " + file);
+    }
+
+    private void serve() {
+        try {
+            serverSocket = new ServerSocket(METRICS_PORT, 4, InetAddress.getByName("127.0.0.1"));
+        } catch (IOException e) {
+            jobExecutionService.onError(e.getMessage());
+            return;
+        }
+        jobExecutionService.onSuccess("serving metrics on 127.0.0.1:%s", METRICS_PORT);
+        // scrapes are rare and cheap, so one thread answers them one after another
+        Thread server = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!serverSocket.isClosed()) {
+                    try (Socket socket = serverSocket.accept()) {
+                        respond(socket);
+                    } catch (IOException e) {
+                        // the socket was closed by stop() or a scraper went away
+                    }
+                }
+            }
+        }, "job-metrics-http");
+        server.setDaemon(true);
+        server.start();
+    }
+
+    // answers any request with the current snapshot, the request itself is only read past
+    private void respond(Socket socket) throws IOException {
+        socket.setSoTimeout(2000);
+        InputStream in = new BufferedInputStream(socket.getInputStream());
+        // skip the request head up to the empty line
+        int matched = 0;
+        int b;
+        for (int n = 0; matched < 4 && n < MAX_REQUEST_HEAD && (b = in.read()) != -1; n++)
+            matched = b == END_OF_HEAD.charAt(matched) ? matched + 1 : (b == '\r' ? 1 : 0);
+        byte[] body = prometheus().getBytes(UTF_8);
+        String head = "HTTP/1.0 200 OK\r\n" +
+                "Content-Type: text/plain; version=0.0.4; charset=utf-8\r\n" +
+                "Content-Length: " + body.length + "\r\n" +
+                "Connection: close\r\n\r\n";
+        OutputStream out = socket.getOutputStream();
+        out.write(head.getBytes(UTF_8));
+        out.write(body);
+        out.flush();
+    }
+}
@@ -0,0 +1,363 @@
+package utils;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+
+import org.eclipse.paho.android.service.MqttAndroidClient;
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.IMqttMessageListener;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttCallbackExtended;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import utils.data.OutboxStore;
+
+import static com.nxtgizmo.androidmqttdemo.mqtt_app.AppConfig.DRAIN_TIMEOUT;
+import static com.nxtgizmo.androidmqttdemo.mqtt_app.AppConfig.MQTT_CLEAN_SESSION;
+import static com.nxtgizmo.androidmqttdemo.mqtt_app.AppConfig.MQTT_KEEP_ALIVE;
+import static com.nxtgizmo.androidmqttdemo.mqtt_app.AppConfig.MQTT_RECONNECT_MAX_DELAY;
+import static com.nxtgizmo.androidmqttdemo.mqtt_app.AppConfig.MQTT_RECONNECT_MIN_DELAY;
+import static com.nxtgizmo.androidmqttdemo.mqtt_app.AppConfig.QOS;
+
+// keeps the device connected to the broker. the session is persistent unless MQTT_CLEAN_SESSION,
+// so the broker queues the job messages of a device that dropped off for a moment and delivers
+// them when it is back. a lost connection is retried with exponential backoff and jitter, so
+// devices behind the same outage do not come back in lockstep, and at once when the network
+// returns. messages published meanwhile wait in the outbox until the connection is back. every
+// publish goes through the session thread and sends the outbox first, so a message is never
+// overtaken by one buffered before it.
+// start() connects before the rest of the engine is built, so connecting overlaps with it. until
+// open() the listeners hear nothing and the messages that arrive are held.
+public class MqttSession {
+
+    public interface Listener {
+        // called on the session thread after every connect, the outbox is flushed by then
+        void onConnected(boolean reconnect);
+
+        void onConnectionLost(Throwable cause);
+    }
+
+    private final Context context;
+    private final MqttAndroidClient client;
+    private final OutboxStore outboxStore;
+    private final EventSink events;
+    private final Listener listener;
+    private final MqttConnectOptions options = new MqttConnectOptions();
+    private final ScheduledThreadPoolExecutor executor;
+    private final Random random = new Random();
+    // topic -> listener. every message arrives through the callback, also those the broker
+    // delivers from the session before the topics are subscribed again
+    private final Map<String, IMqttMessageListener> listeners = new ConcurrentHashMap<>();
+    // messages that arrived before open(), {topic, message}
+    private final List<Object[]> held = new ArrayList<>();
+    private final Runnable connect = new Runnable() {
+        @Override
+        public void run() {
+            connect();
+        }
+    };
+    private final BroadcastReceiver networkReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            ConnectivityManager connectivityManager =
+                    (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+            NetworkInfo network = connectivityManager.getActiveNetworkInfo();
+            if (network != null && network.isConnected())
+                reconnectNow();
+        }
+    };
+    // consecutive failed connects, 0 while connected
+    private int failures = 0;
+    private ScheduledFuture<?> reconnect;
+    private boolean connectedOnce = false;
+    private boolean opened = false;
+    // the listener heard of the current connection
+    private boolean notified = false;
+    // only touched on the session thread, false until a flush found the outbox empty
+    private boolean outboxEmpty = false;
+    private volatile boolean closed = false;
+
+    public MqttSession(Context context, MqttAndroidClient client, OutboxStore outboxStore,
+                       EventSink events, Listener listener) {
+        this.context = context;
+        this.client = client;
+        this.outboxStore = outboxStore;
+        this.events = events;
+        this.listener = listener;
+        options.setKeepAliveInterval(MQTT_KEEP_ALIVE);
+        options.setCleanSession(MQTT_CLEAN_SESSION);
+        // the backoff below reconnects, the one of the client has no jitter
+        options.setAutomaticReconnect(false);
+        executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "mqtt-session");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        // close() lets the queued publishes run but not a scheduled reconnect
+        executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+    }
+
+    // published by the broker if the device drops off without disconnecting, set before start()
+    public void setWill(String topic, byte[] payload) {
+        options.setWill(topic, payload, QOS, false);
+    }
+
+    public void start() {
+        client.setCallback(new MqttCallbackExtended() {
+            @Override
+            public void connectComplete(boolean reconnect, String serverURI) {
+                execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        onConnected();
+                    }
+                });
+            }
+
+            @Override
+            public void connectionLost(Throwable cause) {
+                events.onError("lost the connection to the broker >\n%s", cause);
+                boolean wasNotified;
+                synchronized (MqttSession.this) {
+                    wasNotified = notified;
+                    notified = false;
+                }
+                if (wasNotified)
+                    listener.onConnectionLost(cause);
+                scheduleReconnect();
+            }
+
+            @Override
+            public void messageArrived(String topic, MqttMessage message) throws Exception {
+                synchronized (MqttSession.this) {
+                    if (!opened) {
+                        held.add(new Object[]{topic, message});
+                        return;
+                    }
+                }
+                dispatch(topic, message);
+            }
+
+            @Override
+            public void deliveryComplete(IMqttDeliveryToken token) {
+            }
+        });
+        context.registerReceiver(networkReceiver, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+        execute(connect);
+    }
+
+    // the engine is ready, the listener hears of the connection and the held messages are passed on
+    public void open() {
+        final List<Object[]> arrived;
+        synchronized (this) {
+            opened = true;
+            arrived = new ArrayList<>(held);
+            held.clear();
+        }
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                if (client.isConnected())
+                    onConnected();
+                for (Object[] m : arrived) {
+                    try {
+                        dispatch((String) m[0], (MqttMessage) m[1]);
+                    } catch (Exception e) {
+                        events.onError(e.getMessage());
+                    }
+                }
+            }
+        });
+    }
+
+    public boolean isConnected() {
+        return !closed && client.isConnected();
+    }
+
+    // the topic is subscribed again after every connect
+    public void subscribe(String topic, IMqttMessageListener l) throws MqttException {
+        listeners.put(topic, l);
+        if (client.isConnected())
+            client.subscribe(topic, QOS);
+    }
+
+    public void unsubscribe(String topic) throws MqttException {
+        listeners.remove(topic);
+        if (client.isConnected())
+            client.unsubscribe(topic);
+    }
+
+    // sent on the session thread, at once while connected and nothing is buffered, otherwise
+    // buffered. key names messages of which only the latest matters, a buffered one with the same
+    // key is replaced. null keeps every message.
+    public void publish(final String topic, final byte[] payload, final String key) {
+        boolean queued = execute(new Runnable() {
+            @Override
+            public void run() {
+                send(topic, payload, key);
+            }
+        });
+        // closed, the message goes out after the next start
+        if (!queued)
+            outboxStore.add(topic, payload, QOS, key);
+    }
+
+    // the publishes queued before are still sent
+    public void close() throws MqttException {
+        closed = true;
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(DRAIN_TIMEOUT, TimeUnit.MILLISECONDS))
+                executor.shutdownNow();
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        try {
+            context.unregisterReceiver(networkReceiver);
+        } catch (IllegalArgumentException e) {
+            // not started
+        }
+        if (client.isConnected())
+            client.disconnect();
+    }
+
+    private void send(String topic, byte[] payload, String key) {
+        if (!outboxEmpty)
+            flush();
+        if (outboxEmpty && client.isConnected()) {
+            try {
+                client.publish(topic, payload, QOS, false);
+                return;
+            } catch (MqttException e) {
+                events.onError(e.getMessage());
+            }
+        }
+        outboxStore.add(topic, payload, QOS, key);
+        outboxEmpty = false;
+        events.onSuccess("buffered a message on %s until the broker is reachable", topic);
+    }
+
+    private void connect() {
+        if (closed || client.isConnected())
+            return;
+        try {
+            client.connect(options, null, new IMqttActionListener() {
+                @Override
+                public void onSuccess(IMqttToken asyncActionToken) {
+                    // connectComplete follows
+                }
+
+                @Override
+                public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+                    events.onError("could not connect to the broker >\n%s", exception);
+                    scheduleReconnect();
+                }
+            });
+        } catch (MqttException e) {
+            events.onError(e.getMessage());
+            scheduleReconnect();
+        }
+    }
+
+    // the delay doubles with every failure up to MQTT_RECONNECT_MAX_DELAY, half of it is random
+    private synchronized void scheduleReconnect() {
+        if (closed || (reconnect != null && !reconnect.isDone()))
+            return;
+        long delay = Math.min(MQTT_RECONNECT_MAX_DELAY, MQTT_RECONNECT_MIN_DELAY << Math.min(failures, 20));
+        delay = delay / 2 + (long) (random.nextDouble() * (delay / 2));
+        failures++;
+        events.onSuccess("reconnecting to the broker in %s milliseconds", delay);
+        try {
+            reconnect = executor.schedule(connect, delay, TimeUnit.MILLISECONDS);
+        } catch (RuntimeException e) {
+            // closed
+        }
+    }
+
+    private synchronized void reconnectNow() {
+        if (closed || client.isConnected())
+            return;
+        failures = 0;
+        if (reconnect != null)
+            reconnect.cancel(false);
+        reconnect = null;
+        execute(connect);
+    }
+
+    // runs once per connection, after it completed and the session was opened
+    private void onConnected() {
+        boolean reconnect;
+        synchronized (this) {
+            failures = 0;
+            if (!opened || notified)
+                return;
+            notified = true;
+            reconnect = connectedOnce;
+            connectedOnce = true;
+        }
+        events.onSuccess(reconnect ? "reconnected to the broker" : "connected to the broker");
+        // a persistent session still has the subscriptions, subscribing again is harmless and
+        // covers a session the broker dropped
+        for (String topic : listeners.keySet()) {
+            try {
+                client.subscribe(topic, QOS);
+            } catch (MqttException e) {
+                events.onError(e.getMessage());
+            }
+        }
+        flush();
+        listener.onConnected(reconnect);
+    }
+
+    private void dispatch(String topic, MqttMessage message) throws Exception {
+        IMqttMessageListener l = listeners.get(topic);
+        if (l != null)
+            l.messageArrived(topic, message);
+    }
+
+    private void flush() {
+        for (OutboxStore.Entry entry : outboxStore.pending()) {
+            if (!client.isConnected())
+                return;
+            try {
+                client.publish(entry.getTopic(), entry.getPayload(), entry.getQos(), false);
+                outboxStore.delete(entry.getRowId());
+            } catch (MqttException e) {
+                events.onError(e.getMessage());
+                return;
+            }
+        }
+        outboxEmpty = true;
+    }
+
+    // false if the session is closed
+    private boolean execute(Runnable r) {
+        try {
+            executor.execute(r);
+            return true;
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+// the output of one fraction, handed to executables that take a WritableByteChannel instead of an
+// output path. it writes into memory mapped windows of the output file, so the bytes go straight to
+// the page cache without a system call or a stream buffer per write. the uploader maps the same
+// pages to send them as they are or to gzip them while the chunks go out; no copy of the output
+// is written. another process can open the same file, which is how job processes write it. closing
+// the channel cuts the file to the bytes written.
+public class OutputChannel implements WritableByteChannel {
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final long windowSize;
+    private MappedByteBuffer window;
+    private long windowStart = 0;
+    private long position = 0;
+    private boolean open = true;
+
+    // windowSize in bytes, the file grows by a window whenever the current one is full
+    public OutputChannel(File f, long windowSize) throws IOException {
+        this.file = new RandomAccessFile(f, "rw");
+        this.channel = file.getChannel();
+        this.windowSize = Math.max(64 * 1024, windowSize);
+        try {
+            map(0);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public synchronized int write(ByteBuffer src) throws IOException {
+        if (!open)
+            throw new ClosedChannelException();
+        int written = 0;
+        while (src.hasRemaining()) {
+            if (!window.hasRemaining())
+                map(windowStart + windowSize);
+            int n = Math.min(src.remaining(), window.remaining());
+            ByteBuffer part = src.duplicate();
+            part.limit(part.position() + n);
+            window.put(part);
+            src.position(src.position() + n);
+            written += n;
+        }
+        position += written;
+        return written;
+    }
+
+    // bytes written so far
+    public synchronized long size() {
+        return position;
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+        return open;
+    }
+
+    // executables may close the channel themselves, the job closes it again afterwards
+    @Override
+    public synchronized void close() throws IOException {
+        if (!open)
+            return;
+        open = false;
+        // nothing touches the mapping past the new end, the gc unmaps it
+        window = null;
+        try {
+            channel.truncate(position);
+        } finally {
+            file.close();
+        }
+    }
+
+    private void map(long start) throws IOException {
+        window = channel.map(FileChannel.MapMode.READ_WRITE, start, windowSize);
+        windowStart = start;
+    }
+}
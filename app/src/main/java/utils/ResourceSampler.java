@@ -0,0 +1,308 @@
+package utils;
+
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Debug;
+import android.os.Process;
+import android.os.SystemClock;
+import android.system.Os;
+import android.system.OsConstants;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import static com.nxtgizmo.androidmqttdemo.mqtt_app.AppConfig.RESOURCE_SAMPLE_INTERVAL;
+
+// samples the cpu and memory usage of running jobs. one shared thread reads /proc for every job in
+// flight, so sampling costs a couple of small file reads per job and interval and nothing else.
+// cpu usage is in percent of one core, memory is the java heap in use plus the allocated native
+// heap in kilobytes. memory is process wide, so concurrent jobs see each other's allocations.
+public class ResourceSampler {
+
+    public static class Usage {
+        private final int avgCpuUsage;
+        private final int peakCpuUsage;
+        private final int p90CpuUsage;
+        private final int avgProcessCpuUsage;
+        private final int avgRamUsage;
+        private final int peakRamUsage;
+        private final int p90RamUsage;
+        private final long peakRss;
+        private final long cpuTime;
+
+        private Usage(int[] cpu, int[] processCpu, int[] ram, long peakRss, long cpuTime) {
+            avgCpuUsage = average(cpu);
+            peakCpuUsage = percentile(cpu, 100);
+            p90CpuUsage = percentile(cpu, 90);
+            avgProcessCpuUsage = average(processCpu);
+            avgRamUsage = average(ram);
+            peakRamUsage = percentile(ram, 100);
+            p90RamUsage = percentile(ram, 90);
+            this.peakRss = peakRss;
+            this.cpuTime = cpuTime;
+        }
+
+        // usage measured in a job process
+        public static Usage fromBundle(Bundle b) {
+            return new Usage(b.getIntArray("values"), b.getLong("peak_rss"), b.getLong("cpu_time"));
+        }
+
+        private Usage(int[] values, long peakRss, long cpuTime) {
+            avgCpuUsage = values[0];
+            peakCpuUsage = values[1];
+            p90CpuUsage = values[2];
+            avgProcessCpuUsage = values[3];
+            avgRamUsage = values[4];
+            peakRamUsage = values[5];
+            p90RamUsage = values[6];
+            this.peakRss = peakRss;
+            this.cpuTime = cpuTime;
+        }
+
+        public Bundle toBundle() {
+            Bundle b = new Bundle();
+            b.putIntArray("values", new int[]{avgCpuUsage, peakCpuUsage, p90CpuUsage, avgProcessCpuUsage,
+                    avgRamUsage, peakRamUsage, p90RamUsage});
+            b.putLong("peak_rss", peakRss);
+            b.putLong("cpu_time", cpuTime);
+            return b;
+        }
+
+        public int getAvgCpuUsage() {
+            return avgCpuUsage;
+        }
+
+        public int getPeakCpuUsage() {
+            return peakCpuUsage;
+        }
+
+        public int getP90CpuUsage() {
+            return p90CpuUsage;
+        }
+
+        public int getAvgProcessCpuUsage() {
+            return avgProcessCpuUsage;
+        }
+
+        public int getAvgRamUsage() {
+            return avgRamUsage;
+        }
+
+        public int getPeakRamUsage() {
+            return peakRamUsage;
+        }
+
+        public int getP90RamUsage() {
+            return p90RamUsage;
+        }
+
+        // kilobytes, -1 if /proc could not be read
+        public long getPeakRss() {
+            return peakRss;
+        }
+
+        // milliseconds the job's thread spent on a cpu
+        public long getCpuTime() {
+            return cpuTime;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("cpu: avg %s%% p90 %s%% peak %s%% (process %s%%)\n" +
+                            "ram: avg %skB p90 %skB peak %skB rss %skB\ncpu time: %sms",
+                    avgCpuUsage, p90CpuUsage, peakCpuUsage, avgProcessCpuUsage,
+                    avgRamUsage, p90RamUsage, peakRamUsage, peakRss, cpuTime);
+        }
+
+        private static int average(int[] samples) {
+            if (samples.length == 0)
+                return -1;
+            long sum = 0;
+            for (int sample : samples)
+                sum += sample;
+            return (int) (sum / samples.length);
+        }
+
+        // samples must be sorted
+        private static int percentile(int[] samples, int p) {
+            if (samples.length == 0)
+                return -1;
+            int i = (int) Math.ceil(p / 100.0 * samples.length) - 1;
+            return samples[Math.max(0, Math.min(samples.length - 1, i))];
+        }
+    }
+
+    // sampling of one job, begun and ended on the job's own thread
+    public class Sampling implements Runnable {
+        private final String threadStatPath;
+        private final long startCpuTime;
+        private ScheduledFuture<?> future;
+        private long lastTime;
+        private long lastThreadTicks;
+        private long lastProcessTicks;
+        private long peakRss = -1;
+        private final IntArray cpu = new IntArray();
+        private final IntArray processCpu = new IntArray();
+        private final IntArray ram = new IntArray();
+
+        private Sampling() {
+            threadStatPath = "/proc/self/task/" + Process.myTid() + "/stat";
+            startCpuTime = Debug.threadCpuTimeNanos();
+            lastTime = SystemClock.elapsedRealtime();
+            lastThreadTicks = readCpuTicks(threadStatPath, null);
+            lastProcessTicks = readCpuTicks(PROCESS_STAT_PATH, null);
+        }
+
+        @Override
+        public synchronized void run() {
+            long now = SystemClock.elapsedRealtime();
+            long elapsed = now - lastTime;
+            if (elapsed <= 0)
+                return;
+            long[] rss = new long[1];
+            long threadTicks = readCpuTicks(threadStatPath, null);
+            long processTicks = readCpuTicks(PROCESS_STAT_PATH, rss);
+            if (threadTicks >= 0 && lastThreadTicks >= 0)
+                cpu.add(percentOfCore(threadTicks - lastThreadTicks, elapsed));
+            if (processTicks >= 0 && lastProcessTicks >= 0)
+                processCpu.add(percentOfCore(processTicks - lastProcessTicks, elapsed));
+            Runtime runtime = Runtime.getRuntime();
+            long heap = runtime.totalMemory() - runtime.freeMemory();
+            ram.add((int) ((heap + Debug.getNativeHeapAllocatedSize()) / 1024));
+            if (rss[0] > peakRss)
+                peakRss = rss[0];
+            lastTime = now;
+            lastThreadTicks = threadTicks;
+            lastProcessTicks = processTicks;
+        }
+
+        public Usage end() {
+            long cpuTime = (Debug.threadCpuTimeNanos() - startCpuTime) / 1000000;
+            future.cancel(false);
+            synchronized (this) {
+                // a job shorter than the interval still gets one sample
+                if (cpu.size() == 0)
+                    run();
+                return new Usage(cpu.sorted(), processCpu.sorted(), ram.sorted(), peakRss, cpuTime);
+            }
+        }
+
+        private int percentOfCore(long ticks, long elapsedMillis) {
+            return (int) (ticks * 1000 / clockTicks * 100 / elapsedMillis);
+        }
+    }
+
+    private static final String PROCESS_STAT_PATH = "/proc/self/stat";
+    // fields of /proc/<pid>/stat, counted from 1 like in proc(5)
+    private static final int FIELD_UTIME = 14;
+    private static final int FIELD_STIME = 15;
+    private static final int FIELD_RSS = 24;
+    private static final long PAGE_SIZE_KB = 4;
+
+    private final ScheduledThreadPoolExecutor executor;
+    private final long clockTicks;
+
+    public ResourceSampler() {
+        executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "job-sampler");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        clockTicks = Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP ?
+                Os.sysconf(OsConstants._SC_CLK_TCK) : 100;
+    }
+
+    // starts sampling the calling thread
+    public Sampling begin() {
+        Sampling sampling = new Sampling();
+        synchronized (sampling) {
+            sampling.future = executor.scheduleAtFixedRate(sampling, RESOURCE_SAMPLE_INTERVAL,
+                    RESOURCE_SAMPLE_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+        return sampling;
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    // returns utime + stime in clock ticks, or -1. rss[0] receives the resident set in kilobytes
+    private static long readCpuTicks(String path, long[] rss) {
+        // the stat line is short, but the command name may contain spaces and parentheses
+        byte[] buffer = new byte[512];
+        int length = 0;
+        try (FileInputStream in = new FileInputStream(path)) {
+            int n;
+            while (length < buffer.length && (n = in.read(buffer, length, buffer.length - length)) > 0)
+                length += n;
+        } catch (IOException e) {
+            return -1;
+        }
+        int i = length - 1;
+        while (i >= 0 && buffer[i] != ')')
+            i--;
+        if (i < 0)
+            return -1;
+        // the field after the command name is the 3rd one
+        int field = 2;
+        long utime = -1;
+        long stime = -1;
+        long value = 0;
+        boolean inField = false;
+        for (i = i + 1; i < length; i++) {
+            byte b = buffer[i];
+            if (b == ' ' || b == '\n') {
+                if (inField) {
+                    if (field == FIELD_UTIME)
+                        utime = value;
+                    else if (field == FIELD_STIME)
+                        stime = value;
+                    else if (field == FIELD_RSS && rss != null)
+                        rss[0] = value * PAGE_SIZE_KB;
+                    if (field >= FIELD_RSS)
+                        break;
+                }
+                inField = false;
+            } else {
+                if (!inField) {
+                    inField = true;
+                    field++;
+                    value = 0;
+                }
+                if (b >= '0' && b <= '9')
+                    value = value * 10 + (b - '0');
+            }
+        }
+        return utime >= 0 && stime >= 0 ? utime + stime : -1;
+    }
+
+    // growable int array, avoids boxing a sample every interval
+    private static class IntArray {
+        private int[] values = new int[16];
+        private int size;
+
+        void add(int value) {
+            if (size == values.length)
+                values = Arrays.copyOf(values, size * 2);
+            values[size++] = value;
+        }
+
+        int size() {
+            return size;
+        }
+
+        int[] sorted() {
+            int[] copy = Arrays.copyOf(values, size);
+            Arrays.sort(copy);
+            return copy;
+        }
+    }
+}
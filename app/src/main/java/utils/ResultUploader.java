@@ -0,0 +1,431 @@
+package utils;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.GZIPOutputStream;
+
+import okhttp3.HttpUrl;
+import okhttp3.MediaType;
+import okhttp3.MultipartBody;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.ByteString;
+
+// uploads partial results. an upload is created under /jobs/<id>/partial-results/uploads/ with a
+// deferred length and the output is gzipped while it is sent in chunks, the last chunk carries the
+// Upload-Length. the server acknowledges every chunk with an Upload-Offset header and a failed chunk
+// is retried, with backoff, from the last acknowledged offset. servers without the uploads endpoint
+// get the whole file in one multipart request as before, retried the same way.
+//
+// the same fraction may run on several devices as backup attempts, so before uploading the device
+// asks HEAD /jobs/<id>/partial-results/<index>/ whether the server already has it. 200 means it
+// does and nothing is sent, anything else or no answer means the output is uploaded.
+//
+// a combined result covers several fractions. it is sent with the first of them as index and all
+// of them, comma separated, as fractions; only the 409 tells whether the server already has them.
+public class ResultUploader {
+
+    // returned by upload() if the server already had a result for the fraction
+    public static final long ALREADY_DONE = -2;
+
+    // the server answered the upload with 409, a faster attempt finished the fraction meanwhile
+    private static class AlreadyDoneException extends IOException {
+    }
+
+    private static final MediaType OCTET_STREAM = MediaType.parse("application/offset+octet-stream");
+    private static final MediaType TEXT_CSV = MediaType.parse("text/csv"); // TODO media type may be unknown
+    private static final String UPLOAD_OFFSET = "Upload-Offset";
+    private static final String UPLOAD_LENGTH = "Upload-Length";
+    // bytes of the output mapped at a time while a request body is written
+    private static final long MAP_WINDOW = 8 * 1024 * 1024;
+
+    private final EventSink events;
+    private final OkHttpClient client;
+    private final String webAddress;
+    private final long chunkSize;
+    private final int maxAttempts;
+    private final long retryDelay;
+    private final boolean dedupCheck;
+
+    // chunkSize in bytes, 0 sends every output in one request. retryDelay in milliseconds, doubled
+    // after every failed attempt
+    public ResultUploader(EventSink events, OkHttpClient client, String webAddress, long chunkSize,
+                          int maxAttempts, long retryDelay, boolean dedupCheck) {
+        this.events = events;
+        this.client = client;
+        this.webAddress = webAddress;
+        this.chunkSize = chunkSize;
+        this.maxAttempts = maxAttempts;
+        this.retryDelay = retryDelay;
+        this.dedupCheck = dedupCheck;
+    }
+
+    // returns the milliseconds the upload took, -1 if it failed or ALREADY_DONE
+    public long upload(String jobId, int fraction, int attempt, String deviceId, String outputPath,
+                       long consumedTime) {
+        return upload(jobId, new int[]{fraction}, attempt, deviceId, outputPath, consumedTime);
+    }
+
+    // uploads the combined result of the given fractions
+    public long upload(String jobId, int[] fractions, int attempt, String deviceId, String outputPath,
+                       long consumedTime) {
+        String fraction = join(fractions);
+        if (dedupCheck && fractions.length == 1 && isAlreadyDone(jobId, fractions[0])) {
+            events.onSuccess("skipped upload, the server already has job %s fraction %s", jobId, fraction);
+            return ALREADY_DONE;
+        }
+        if (chunkSize <= 0)
+            return uploadWhole(jobId, fractions, attempt, deviceId, outputPath, consumedTime);
+
+        long s = System.currentTimeMillis();
+        HttpUrl uploadUrl;
+        try {
+            uploadUrl = createWithRetries(jobId, fractions, attempt, deviceId, consumedTime);
+        } catch (AlreadyDoneException e) {
+            events.onSuccess("skipped upload, the server already has job %s fraction %s", jobId, fraction);
+            return ALREADY_DONE;
+        } catch (IOException e) {
+            events.onError(e.getMessage());
+            return -1;
+        }
+        if (uploadUrl == null)
+            return uploadWhole(jobId, fractions, attempt, deviceId, outputPath, consumedTime);
+        try (GzipReader gzip = new GzipReader(new File(outputPath))) {
+            long compressed = sendChunks(uploadUrl, gzip);
+            long e = System.currentTimeMillis();
+            events.onSuccess("upload status >\nfile: %s\nsize: %s bytes\ncompressed: %s bytes\n" +
+                    "upload time: %s milliseconds", outputPath, gzip.size(), compressed, e - s);
+            return e - s;
+        } catch (IOException e) {
+            events.onError(e.getMessage());
+            return -1;
+        }
+    }
+
+    // only a 200 counts, an error must not cost the result
+    private boolean isAlreadyDone(String jobId, int fraction) {
+        Request request = new Request.Builder()
+                .url(webAddress + "/jobs/" + jobId + "/partial-results/" + fraction + "/")
+                .head()
+                .build();
+        try (Response response = client.newCall(request).execute()) {
+            return response.code() == 200;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private HttpUrl createWithRetries(String jobId, int[] fractions, int attempt, String deviceId,
+                                      long consumedTime) throws IOException {
+        long delay = retryDelay;
+        for (int tries = 1; ; tries++) {
+            try {
+                return create(jobId, fractions, attempt, deviceId, consumedTime);
+            } catch (AlreadyDoneException e) {
+                throw e;
+            } catch (IOException e) {
+                if (tries >= maxAttempts)
+                    throw e;
+                events.onError(e.getMessage());
+                sleep(delay);
+                delay *= 2;
+            }
+        }
+    }
+
+    // null if the server has no uploads endpoint. the length is not known until the output is
+    // compressed, the last chunk declares it
+    private HttpUrl create(String jobId, int[] fractions, int attempt, String deviceId, long consumedTime)
+            throws IOException {
+        String url = webAddress + "/jobs/" + jobId + "/partial-results/uploads/";
+        MultipartBody form = fractionParts(fractions)
+                .addFormDataPart("attempt", String.valueOf(attempt))
+                .addFormDataPart("device_id", deviceId)
+                .addFormDataPart("consumed_time", String.valueOf(consumedTime))
+                .addFormDataPart("upload_defer_length", "1")
+                .addFormDataPart("content_encoding", "gzip")
+                .build();
+        Request request = new Request.Builder().url(url).post(form).build();
+        try (Response response = client.newCall(request).execute()) {
+            if (response.code() == 404 || response.code() == 405 || response.code() == 501)
+                return null;
+            if (response.code() == 409)
+                throw new AlreadyDoneException();
+            String location = response.header("Location");
+            if (!response.isSuccessful() || location == null)
+                throw new IOException(String.format("could not create upload, status %s", response.code()));
+            return response.request().url().resolve(location);
+        }
+    }
+
+    // the compressed bytes not yet acknowledged are kept, at most a chunk and what one read of the
+    // output compresses to, so a chunk can be sent again. returns the compressed length.
+    private long sendChunks(HttpUrl uploadUrl, GzipReader gzip) throws IOException {
+        Buffer pending = gzip.buffer();
+        long acknowledged = 0;
+        int failures = 0;
+        long delay = retryDelay;
+        while (true) {
+            gzip.fill(chunkSize);
+            long chunk = Math.min(chunkSize, pending.size());
+            boolean last = gzip.isFinished() && chunk == pending.size();
+            try {
+                long next = sendChunk(uploadUrl, pending.snapshot((int) chunk), acknowledged,
+                        last ? acknowledged + chunk : -1);
+                if (next <= acknowledged && chunk > 0)
+                    throw new IOException("server acknowledged no progress at offset " + acknowledged);
+                skipTo(pending, acknowledged, next);
+                acknowledged = next;
+                failures = 0;
+                delay = retryDelay;
+                if (last && pending.size() == 0)
+                    return acknowledged;
+            } catch (IOException e) {
+                if (++failures >= maxAttempts)
+                    throw e;
+                events.onError("upload chunk failed, retrying from the last acknowledged offset >\n" +
+                        "url: %s\nerror: %s", uploadUrl, e.getMessage());
+                sleep(delay);
+                delay *= 2;
+                long offset = queryOffset(uploadUrl, acknowledged);
+                skipTo(pending, acknowledged, offset);
+                acknowledged = offset;
+            }
+        }
+    }
+
+    // drops the bytes of pending, which starts at offset from, the server acknowledged up to to
+    private static void skipTo(Buffer pending, long from, long to) throws IOException {
+        if (to < from || to - from > pending.size())
+            throw new IOException(String.format("server acknowledged offset %s, the device has %s to %s",
+                    to, from, from + pending.size()));
+        pending.skip(to - from);
+    }
+
+    // uploadLength is sent with the last chunk, -1 for the others
+    private long sendChunk(HttpUrl uploadUrl, ByteString chunk, long offset, long uploadLength)
+            throws IOException {
+        Request.Builder builder = new Request.Builder()
+                .url(uploadUrl)
+                .header(UPLOAD_OFFSET, String.valueOf(offset))
+                .patch(RequestBody.create(OCTET_STREAM, chunk));
+        if (uploadLength >= 0)
+            builder.header(UPLOAD_LENGTH, String.valueOf(uploadLength));
+        try (Response response = client.newCall(builder.build()).execute()) {
+            if (!response.isSuccessful())
+                throw new IOException(String.format("chunk at %s rejected with status %s", offset, response.code()));
+            return acknowledgedOffset(response, offset + chunk.size());
+        }
+    }
+
+    private long queryOffset(HttpUrl uploadUrl, long fallback) {
+        Request request = new Request.Builder().url(uploadUrl).head().build();
+        try (Response response = client.newCall(request).execute()) {
+            if (response.isSuccessful())
+                return acknowledgedOffset(response, fallback);
+        } catch (IOException e) {
+            events.onError(e.getMessage());
+        }
+        return fallback;
+    }
+
+    private static long acknowledgedOffset(Response response, long fallback) throws IOException {
+        String offset = response.header(UPLOAD_OFFSET);
+        if (offset == null)
+            return fallback;
+        try {
+            return Long.parseLong(offset.trim());
+        } catch (NumberFormatException e) {
+            throw new IOException("invalid " + UPLOAD_OFFSET + ": " + offset);
+        }
+    }
+
+    // only a 2xx counts as uploaded, a 409 like when creating an upload, anything else is retried
+    // with backoff
+    private long uploadWhole(String jobId, int[] fractions, int attempt, String deviceId, String outputPath,
+                             long consumedTime) {
+        long delay = retryDelay;
+        for (int tries = 1; ; tries++) {
+            try {
+                return sendWhole(jobId, fractions, attempt, deviceId, outputPath, consumedTime);
+            } catch (AlreadyDoneException e) {
+                events.onSuccess("skipped upload, the server already has job %s fraction %s",
+                        jobId, join(fractions));
+                return ALREADY_DONE;
+            } catch (IOException e) {
+                events.onError(e.getMessage());
+                if (tries >= maxAttempts)
+                    return -1;
+            }
+            try {
+                sleep(delay);
+            } catch (IOException e) {
+                return -1;
+            }
+            delay *= 2;
+        }
+    }
+
+    private long sendWhole(String jobId, int[] fractions, int attempt, String deviceId, String outputPath,
+                           long consumedTime) throws IOException {
+        File file = new File(outputPath);
+        MultipartBody multipartBody = fractionParts(fractions)
+                .addFormDataPart("attempt", String.valueOf(attempt))
+                .addFormDataPart("device_id", deviceId)
+                .addFormDataPart("consumed_time", String.valueOf(consumedTime))
+                .addFormDataPart("file", "partial_result_file.out", region(file, 0, file.length(), TEXT_CSV))
+                .build();
+        Request request = new Request.Builder()
+                .url(webAddress + "/jobs/" + jobId + "/partial-results/")
+                .post(multipartBody)
+                .build();
+        long s = System.currentTimeMillis();
+        try (Response response = client.newCall(request).execute()) {
+            long e = System.currentTimeMillis();
+            int respCode = response.code();
+            String respMsg = response.message();
+            String respBody = response.body() != null ? response.body().string() : "";
+            if (respCode == 409)
+                throw new AlreadyDoneException();
+            if (!response.isSuccessful())
+                throw new IOException(String.format("upload rejected with status %s >\n%s", respCode, respBody));
+            events.onSuccess("upload status >\nstatus code: %s\nresponse message: %s\nresponse body: %s\nupload time: %s milliseconds",
+                    respCode, respMsg, respBody, e - s);
+            return e - s;
+        }
+    }
+
+    private static MultipartBody.Builder fractionParts(int[] fractions) {
+        MultipartBody.Builder builder = new MultipartBody.Builder()
+                .setType(MultipartBody.FORM)
+                .addFormDataPart("index", String.valueOf(fractions[0]));
+        if (fractions.length > 1)
+            builder.addFormDataPart("fractions", join(fractions));
+        return builder;
+    }
+
+    private static String join(int[] fractions) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < fractions.length; i++) {
+            if (i > 0)
+                sb.append(',');
+            sb.append(fractions[i]);
+        }
+        return sb.toString();
+    }
+
+    // gzips a file while it is read through its mapping, compressed bytes are produced as they are
+    // asked for, so the output is read once and no compressed copy is written
+    private static class GzipReader implements Closeable {
+        private final RandomAccessFile raf;
+        private final FileChannel channel;
+        private final long size;
+        private final Buffer compressed = new Buffer();
+        private final GZIPOutputStream gzip;
+        private final byte[] bytes = new byte[64 * 1024];
+        private ByteBuffer window;
+        private long position = 0;
+        private boolean finished = false;
+
+        GzipReader(File file) throws IOException {
+            raf = new RandomAccessFile(file, "r");
+            channel = raf.getChannel();
+            size = channel.size();
+            gzip = new GZIPOutputStream(compressed.outputStream(), bytes.length);
+        }
+
+        // the compressed bytes produced and not yet consumed
+        Buffer buffer() {
+            return compressed;
+        }
+
+        // compresses until the buffer holds at least want bytes or the whole file was read
+        void fill(long want) throws IOException {
+            while (compressed.size() < want && !finished) {
+                if (window == null || !window.hasRemaining()) {
+                    if (position == size) {
+                        gzip.close();
+                        finished = true;
+                        return;
+                    }
+                    long length = Math.min(MAP_WINDOW, size - position);
+                    window = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+                    position += length;
+                }
+                int n = Math.min(bytes.length, window.remaining());
+                window.get(bytes, 0, n);
+                gzip.write(bytes, 0, n);
+            }
+        }
+
+        boolean isFinished() {
+            return finished;
+        }
+
+        long size() {
+            return size;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                if (!finished)
+                    gzip.close();
+            } finally {
+                raf.close();
+            }
+        }
+    }
+
+    // the body maps the file and hands the pages to the sink, so the bytes are not read into a
+    // buffer of our own first. an output written through an OutputChannel is still in the page cache.
+    private static RequestBody region(final File file, final long offset, final long length,
+                                      final MediaType contentType) {
+        return new RequestBody() {
+            @Override
+            public MediaType contentType() {
+                return contentType;
+            }
+
+            @Override
+            public long contentLength() {
+                return length;
+            }
+
+            @Override
+            public void writeTo(BufferedSink sink) throws IOException {
+                try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+                    FileChannel channel = raf.getChannel();
+                    if (channel.size() < offset + length)
+                        throw new EOFException();
+                    long done = 0;
+                    while (done < length) {
+                        long window = Math.min(MAP_WINDOW, length - done);
+                        ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, offset + done, window);
+                        while (mapped.hasRemaining())
+                            sink.write(mapped);
+                        done += window;
+                    }
+                }
+            }
+        };
+    }
+
+    private static void sleep(long millis) throws IOException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while waiting to retry the upload");
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package utils;
+
+import android.os.Build;
+import android.os.Process;
+import android.os.SystemClock;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import timber.log.Timber;
+
+// milliseconds from the start of the process until each startup phase was reached, the first time
+// it was reached. startup ends with the first job. phases of a process started by the system to
+// restart the worker service are what decides how long a device sits idle after being killed.
+public final class StartupTimings {
+
+    // the application is created, the config is loaded and the component is built
+    public static final String APP_CREATE = "app_create";
+    // the http client has a connection to WEB_ADDRESS in its pool
+    public static final String HTTP_PRECONNECTED = "http_preconnected";
+    public static final String SERVICE_CREATE = "service_create";
+    // the job engine is built and handles messages
+    public static final String ENGINE_READY = "engine_ready";
+    public static final String BROKER_CONNECTED = "broker_connected";
+    public static final String FIRST_JOB = "first_job";
+
+    private static final String METRIC = "mdcp_startup_seconds";
+    // before android 7 the process start is not known, times then count from the first phase
+    private static final long PROCESS_START = Build.VERSION.SDK_INT >= Build.VERSION_CODES.N ?
+            Process.getStartElapsedRealtime() : SystemClock.elapsedRealtime();
+    private static final Map<String, Long> PHASES = new LinkedHashMap<>();
+
+    private StartupTimings() {
+    }
+
+    // true the first time the phase is reached
+    public static boolean mark(String phase) {
+        long elapsed = SystemClock.elapsedRealtime() - PROCESS_START;
+        synchronized (PHASES) {
+            if (PHASES.containsKey(phase))
+                return false;
+            PHASES.put(phase, elapsed);
+        }
+        Timber.d("======================= startup phase %s after %s ms", phase, elapsed);
+        return true;
+    }
+
+    // one line per phase reached: phase + space + milliseconds
+    public static String toSummary() {
+        StringBuilder sb = new StringBuilder(256);
+        synchronized (PHASES) {
+            for (Map.Entry<String, Long> e : PHASES.entrySet())
+                sb.append(e.getKey()).append(' ').append(e.getValue()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    // prometheus text exposition format 0.0.4
+    public static String toPrometheus() {
+        StringBuilder sb = new StringBuilder(512);
+        sb.append("# HELP ").append(METRIC).append(" Time from the process start until a startup phase was reached.\n");
+        sb.append("# TYPE ").append(METRIC).append(" gauge\n");
+        synchronized (PHASES) {
+            for (Map.Entry<String, Long> e : PHASES.entrySet()) {
+                sb.append(METRIC).append("{phase=\"").append(e.getKey()).append("\"} ")
+                        .append(String.format(Locale.US, "%.3f", e.getValue() / 1e3)).append('\n');
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -14,15 +14,70 @@ public final class JobContract {
         public static final String COLUMN_NAME_OUTPUT_FILE_PATH = "output_file_path";
         public static final String COLUMN_NAME_FRACTION = "fraction";
         public static final String COLUMN_NAME_TOTAL_FRACTIONS = "total_fractions";
+        public static final String COLUMN_NAME_ATTEMPT = "attempt";
         public static final String COLUMN_NAME_CONSUMED_TIME = "consumed_time"; // milliseconds
-        public static final String COLUMN_NAME_AVG_CPU_USAGE = "avg_cpu_usage";
-        public static final String COLUMN_NAME_AVG_RAM_USAGE = "avg_ram_usage";
+        public static final String COLUMN_NAME_AVG_CPU_USAGE = "avg_cpu_usage"; // percent of one core
+        public static final String COLUMN_NAME_PEAK_CPU_USAGE = "peak_cpu_usage"; // percent of one core
+        public static final String COLUMN_NAME_P90_CPU_USAGE = "p90_cpu_usage"; // percent of one core
+        public static final String COLUMN_NAME_AVG_PROCESS_CPU_USAGE = "avg_process_cpu_usage"; // percent of one core
+        public static final String COLUMN_NAME_CPU_TIME = "cpu_time"; // milliseconds
+        public static final String COLUMN_NAME_AVG_RAM_USAGE = "avg_ram_usage"; // kilobytes
+        public static final String COLUMN_NAME_PEAK_RAM_USAGE = "peak_ram_usage"; // kilobytes
+        public static final String COLUMN_NAME_P90_RAM_USAGE = "p90_ram_usage"; // kilobytes
+        public static final String COLUMN_NAME_PEAK_RSS = "peak_rss"; // kilobytes
         public static final String COLUMN_NAME_AVG_TIME_SPENT_TO_DOWNLOAD_EXECUTABLE =
                 "time_spent_to_download_executable"; // milliseconds
         public static final String COLUMN_NAME_AVG_TIME_SPENT_TO_UPLOAD_OUTPUT_FILE =
                 "time_spent_to_upload_output_file"; // milliseconds
         public static final String COLUMN_NAME_EXECUTABLE_SIZE = "executable_size"; // bytes
         public static final String COLUMN_NAME_OUTPUT_FILE_SIZE = "output_file_size"; // bytes
+        public static final String COLUMN_NAME_ABORT_REASON = "abort_reason"; // null if the run was not aborted
+        public static final String COLUMN_NAME_CREATED_AT = "created_at";
+
+        // the server revoked the fraction, e.g. because another device already finished it
+        public static final String ABORT_REASON_CANCELLED = "cancelled";
+        public static final String ABORT_REASON_DEADLINE = "deadline";
+        public static final String ABORT_REASON_TIMEOUT = "timeout";
+        // another attempt delivered the fraction first, the output was not uploaded
+        public static final String ABORT_REASON_DUPLICATE = "duplicate";
+    }
+
+    public static class JobQueue implements BaseColumns {
+        public static final String TABLE_NAME = "job_queue";
+        public static final String COLUMN_NAME_ID = "id";
+        public static final String COLUMN_NAME_EXECUTABLE_URL = "executable_url";
+        public static final String COLUMN_NAME_INPUT_FILE_URL = "input_file_url";
+        public static final String COLUMN_NAME_EXECUTABLE_FILE_NAME = "executable_file_name";
+        public static final String COLUMN_NAME_FRACTION = "fraction";
+        public static final String COLUMN_NAME_TOTAL_FRACTIONS = "total_fractions";
+        public static final String COLUMN_NAME_DEVICE_ID = "device_id";
+        public static final String COLUMN_NAME_EXECUTABLE_SHA256 = "executable_sha256";
+        public static final String COLUMN_NAME_PRIORITY = "priority";
+        public static final String COLUMN_NAME_DEADLINE = "deadline"; // milliseconds since the epoch
+        public static final String COLUMN_NAME_TIMEOUT = "timeout"; // milliseconds
+        public static final String COLUMN_NAME_ATTEMPT = "attempt";
+        public static final String COLUMN_NAME_STATE = "state";
+        public static final String COLUMN_NAME_CONSUMED_TIME = "consumed_time"; // milliseconds
+        // how often a restarted process picked the job up again
+        public static final String COLUMN_NAME_RESUMES = "resumes";
+        public static final String COLUMN_NAME_UPDATED_AT = "updated_at";
+        public static final String COLUMN_NAME_CREATED_AT = "created_at";
+
+        public static final String STATE_RECEIVED = "received";
+        public static final String STATE_DOWNLOADING = "downloading";
+        public static final String STATE_RUNNING = "running";
+        public static final String STATE_UPLOADING = "uploading";
+        public static final String STATE_DONE = "done";
+    }
+
+    // messages published while the broker was unreachable, sent in order once it is back
+    public static class Outbox implements BaseColumns {
+        public static final String TABLE_NAME = "mqtt_outbox";
+        public static final String COLUMN_NAME_TOPIC = "topic";
+        public static final String COLUMN_NAME_PAYLOAD = "payload";
+        public static final String COLUMN_NAME_QOS = "qos";
+        // a message replaces an earlier one with the same key, null if it replaces none
+        public static final String COLUMN_NAME_KEY = "key";
         public static final String COLUMN_NAME_CREATED_AT = "created_at";
     }
-}
\ No newline at end of file
+}
@@ -3,9 +3,20 @@ package utils.data;
 import android.content.Context;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
 
+// schema history:
+// 1 job stats table
+// 2 job_queue table
+// 3 executable sha-256, priority and deadline of queued jobs
+// 4 cpu and memory usage of jobs
+// 5 indices for the stats and queue lookups
+// 6 execution timeout of queued jobs, abort reason of aborted runs
+// 7 attempt of queued jobs and of runs
+// 8 mqtt_outbox table
+// 9 resume count of queued jobs
 public class JobDBHelper extends SQLiteOpenHelper {
-    public static final int DATABASE_VERSION = 1;
+    public static final int DATABASE_VERSION = 9;
     public static final String DATABASE_NAME = "Job.db";
 
     private static final String SQL_CREATE_ENTRIES =
@@ -17,35 +28,150 @@ public class JobDBHelper extends SQLiteOpenHelper {
                     JobContract.Job.COLUMN_NAME_OUTPUT_FILE_PATH + " TEXT," +
                     JobContract.Job.COLUMN_NAME_FRACTION + " INT," +
                     JobContract.Job.COLUMN_NAME_TOTAL_FRACTIONS + " INT," +
+                    JobContract.Job.COLUMN_NAME_ATTEMPT + " INT," +
                     JobContract.Job.COLUMN_NAME_CONSUMED_TIME + " INT," +
                     JobContract.Job.COLUMN_NAME_AVG_CPU_USAGE + " INT," +
+                    JobContract.Job.COLUMN_NAME_PEAK_CPU_USAGE + " INT," +
+                    JobContract.Job.COLUMN_NAME_P90_CPU_USAGE + " INT," +
+                    JobContract.Job.COLUMN_NAME_AVG_PROCESS_CPU_USAGE + " INT," +
+                    JobContract.Job.COLUMN_NAME_CPU_TIME + " INT," +
                     JobContract.Job.COLUMN_NAME_AVG_RAM_USAGE + " INT," +
+                    JobContract.Job.COLUMN_NAME_PEAK_RAM_USAGE + " INT," +
+                    JobContract.Job.COLUMN_NAME_P90_RAM_USAGE + " INT," +
+                    JobContract.Job.COLUMN_NAME_PEAK_RSS + " INT," +
                     JobContract.Job.COLUMN_NAME_AVG_TIME_SPENT_TO_DOWNLOAD_EXECUTABLE + " INT," +
                     JobContract.Job.COLUMN_NAME_AVG_TIME_SPENT_TO_UPLOAD_OUTPUT_FILE + " INT," +
                     JobContract.Job.COLUMN_NAME_EXECUTABLE_SIZE + " INT," +
                     JobContract.Job.COLUMN_NAME_OUTPUT_FILE_SIZE + " INT," +
+                    JobContract.Job.COLUMN_NAME_ABORT_REASON + " TEXT," +
                     JobContract.Job.COLUMN_NAME_CREATED_AT + " DATETIME NOT NULL DEFAULT (datetime(CURRENT_TIMESTAMP, 'localtime')));";
 
+    private static final String SQL_CREATE_QUEUE =
+            "CREATE TABLE " + JobContract.JobQueue.TABLE_NAME + " (" +
+                    JobContract.JobQueue._ID + " INTEGER PRIMARY KEY," +
+                    JobContract.JobQueue.COLUMN_NAME_ID + " TEXT," +
+                    JobContract.JobQueue.COLUMN_NAME_EXECUTABLE_URL + " TEXT," +
+                    JobContract.JobQueue.COLUMN_NAME_INPUT_FILE_URL + " TEXT," +
+                    JobContract.JobQueue.COLUMN_NAME_EXECUTABLE_FILE_NAME + " TEXT," +
+                    JobContract.JobQueue.COLUMN_NAME_FRACTION + " INT," +
+                    JobContract.JobQueue.COLUMN_NAME_TOTAL_FRACTIONS + " INT," +
+                    JobContract.JobQueue.COLUMN_NAME_DEVICE_ID + " TEXT," +
+                    JobContract.JobQueue.COLUMN_NAME_EXECUTABLE_SHA256 + " TEXT," +
+                    JobContract.JobQueue.COLUMN_NAME_PRIORITY + " INT," +
+                    JobContract.JobQueue.COLUMN_NAME_DEADLINE + " INT," +
+                    JobContract.JobQueue.COLUMN_NAME_TIMEOUT + " INT," +
+                    JobContract.JobQueue.COLUMN_NAME_ATTEMPT + " INT," +
+                    JobContract.JobQueue.COLUMN_NAME_STATE + " TEXT NOT NULL," +
+                    JobContract.JobQueue.COLUMN_NAME_CONSUMED_TIME + " INT," +
+                    JobContract.JobQueue.COLUMN_NAME_RESUMES + " INT NOT NULL DEFAULT 0," +
+                    JobContract.JobQueue.COLUMN_NAME_UPDATED_AT + " DATETIME NOT NULL DEFAULT (datetime(CURRENT_TIMESTAMP, 'localtime'))," +
+                    JobContract.JobQueue.COLUMN_NAME_CREATED_AT + " DATETIME NOT NULL DEFAULT (datetime(CURRENT_TIMESTAMP, 'localtime')));";
+
+    private static final String SQL_CREATE_OUTBOX =
+            "CREATE TABLE " + JobContract.Outbox.TABLE_NAME + " (" +
+                    JobContract.Outbox._ID + " INTEGER PRIMARY KEY," +
+                    JobContract.Outbox.COLUMN_NAME_TOPIC + " TEXT NOT NULL," +
+                    JobContract.Outbox.COLUMN_NAME_PAYLOAD + " BLOB NOT NULL," +
+                    JobContract.Outbox.COLUMN_NAME_QOS + " INT," +
+                    JobContract.Outbox.COLUMN_NAME_KEY + " TEXT," +
+                    JobContract.Outbox.COLUMN_NAME_CREATED_AT + " DATETIME NOT NULL DEFAULT (datetime(CURRENT_TIMESTAMP, 'localtime')));";
+
+    private static final String[] SQL_CREATE_INDICES = {
+            "CREATE INDEX IF NOT EXISTS job_id_idx ON " + JobContract.Job.TABLE_NAME +
+                    " (" + JobContract.Job.COLUMN_NAME_ID + ");",
+            "CREATE INDEX IF NOT EXISTS job_created_at_idx ON " + JobContract.Job.TABLE_NAME +
+                    " (" + JobContract.Job.COLUMN_NAME_CREATED_AT + ");",
+            "CREATE INDEX IF NOT EXISTS job_queue_state_idx ON " + JobContract.JobQueue.TABLE_NAME +
+                    " (" + JobContract.JobQueue.COLUMN_NAME_STATE + ");",
+    };
+
     private static final String SQL_DELETE_ENTRIES =
             "DROP TABLE IF EXISTS " + JobContract.Job.TABLE_NAME;
 
+    private static final String SQL_DELETE_QUEUE =
+            "DROP TABLE IF EXISTS " + JobContract.JobQueue.TABLE_NAME;
+
+    private static final String SQL_DELETE_OUTBOX =
+            "DROP TABLE IF EXISTS " + JobContract.Outbox.TABLE_NAME;
+
     public JobDBHelper(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        // readers no longer block the stats writer and a commit does not rewrite the database file
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN)
+            setWriteAheadLoggingEnabled(true);
     }
 
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        if (db.isReadOnly())
+            return;
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN)
+            db.enableWriteAheadLogging();
+        // with wal a commit is durable once the log is synced at a checkpoint, not on every commit
+        // a cursor from rawQuery only steps the statement once it is moved, execSQL runs it at once
+        db.execSQL("PRAGMA synchronous = NORMAL");
+    }
 
     public void onCreate(SQLiteDatabase db) {
         db.execSQL(SQL_CREATE_ENTRIES);
+        db.execSQL(SQL_CREATE_QUEUE);
+        db.execSQL(SQL_CREATE_OUTBOX);
+        for (String sql : SQL_CREATE_INDICES)
+            db.execSQL(sql);
     }
 
+    // each step brings the schema one version further, so stats and queued jobs survive updates
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        // This database is only a cache for online data, so its upgrade policy is
-        // to simply to discard the data and start over
+        if (oldVersion < 2) {
+            db.execSQL(SQL_CREATE_QUEUE);
+        } else if (oldVersion < 3) {
+            addColumn(db, JobContract.JobQueue.TABLE_NAME, JobContract.JobQueue.COLUMN_NAME_EXECUTABLE_SHA256, "TEXT");
+            addColumn(db, JobContract.JobQueue.TABLE_NAME, JobContract.JobQueue.COLUMN_NAME_PRIORITY, "INT");
+            addColumn(db, JobContract.JobQueue.TABLE_NAME, JobContract.JobQueue.COLUMN_NAME_DEADLINE, "INT");
+        }
+        if (oldVersion < 4) {
+            addColumn(db, JobContract.Job.TABLE_NAME, JobContract.Job.COLUMN_NAME_PEAK_CPU_USAGE, "INT");
+            addColumn(db, JobContract.Job.TABLE_NAME, JobContract.Job.COLUMN_NAME_P90_CPU_USAGE, "INT");
+            addColumn(db, JobContract.Job.TABLE_NAME, JobContract.Job.COLUMN_NAME_AVG_PROCESS_CPU_USAGE, "INT");
+            addColumn(db, JobContract.Job.TABLE_NAME, JobContract.Job.COLUMN_NAME_CPU_TIME, "INT");
+            addColumn(db, JobContract.Job.TABLE_NAME, JobContract.Job.COLUMN_NAME_PEAK_RAM_USAGE, "INT");
+            addColumn(db, JobContract.Job.TABLE_NAME, JobContract.Job.COLUMN_NAME_P90_RAM_USAGE, "INT");
+            addColumn(db, JobContract.Job.TABLE_NAME, JobContract.Job.COLUMN_NAME_PEAK_RSS, "INT");
+        }
+        if (oldVersion < 5) {
+            for (String sql : SQL_CREATE_INDICES)
+                db.execSQL(sql);
+        }
+        if (oldVersion < 6) {
+            if (oldVersion >= 2)
+                addColumn(db, JobContract.JobQueue.TABLE_NAME, JobContract.JobQueue.COLUMN_NAME_TIMEOUT, "INT");
+            addColumn(db, JobContract.Job.TABLE_NAME, JobContract.Job.COLUMN_NAME_ABORT_REASON, "TEXT");
+        }
+        if (oldVersion < 7) {
+            if (oldVersion >= 2)
+                addColumn(db, JobContract.JobQueue.TABLE_NAME, JobContract.JobQueue.COLUMN_NAME_ATTEMPT, "INT");
+            addColumn(db, JobContract.Job.TABLE_NAME, JobContract.Job.COLUMN_NAME_ATTEMPT, "INT");
+        }
+        if (oldVersion < 8) {
+            db.execSQL(SQL_CREATE_OUTBOX);
+        }
+        if (oldVersion < 9) {
+            if (oldVersion >= 2)
+                addColumn(db, JobContract.JobQueue.TABLE_NAME, JobContract.JobQueue.COLUMN_NAME_RESUMES,
+                        "INT NOT NULL DEFAULT 0");
+        }
+    }
+
+    // an older schema can't be told apart from a newer one, so a downgrade starts over
+    public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
         db.execSQL(SQL_DELETE_ENTRIES);
+        db.execSQL(SQL_DELETE_QUEUE);
+        db.execSQL(SQL_DELETE_OUTBOX);
         onCreate(db);
     }
 
-    public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        onUpgrade(db, oldVersion, newVersion);
+    private static void addColumn(SQLiteDatabase db, String table, String column, String type) {
+        db.execSQL("ALTER TABLE " + table + " ADD COLUMN " + column + " " + type + ";");
     }
 }
\ No newline at end of file
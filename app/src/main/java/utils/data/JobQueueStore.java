@@ -0,0 +1,202 @@
+package utils.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+// persists every received job before it runs and tracks the stage it reached, so a job survives
+// the process being killed and can be resumed after a restart
+public class JobQueueStore {
+
+    public static class Entry {
+        private final long rowId;
+        private final String jobId;
+        private final String executableURL;
+        private final String inputURL;
+        private final String executableFileName;
+        private final int fraction;
+        private final int totalFractions;
+        private final String deviceId;
+        private final String executableSha256;
+        private final int priority;
+        private final long deadline;
+        private final long timeout;
+        private final int attempt;
+        private final String state;
+        private final long consumedTime;
+        private final int resumes;
+
+        private Entry(Cursor c) {
+            rowId = c.getLong(c.getColumnIndexOrThrow(JobContract.JobQueue._ID));
+            jobId = c.getString(c.getColumnIndexOrThrow(JobContract.JobQueue.COLUMN_NAME_ID));
+            executableURL = c.getString(c.getColumnIndexOrThrow(JobContract.JobQueue.COLUMN_NAME_EXECUTABLE_URL));
+            inputURL = c.getString(c.getColumnIndexOrThrow(JobContract.JobQueue.COLUMN_NAME_INPUT_FILE_URL));
+            executableFileName = c.getString(c.getColumnIndexOrThrow(JobContract.JobQueue.COLUMN_NAME_EXECUTABLE_FILE_NAME));
+            fraction = c.getInt(c.getColumnIndexOrThrow(JobContract.JobQueue.COLUMN_NAME_FRACTION));
+            totalFractions = c.getInt(c.getColumnIndexOrThrow(JobContract.JobQueue.COLUMN_NAME_TOTAL_FRACTIONS));
+            deviceId = c.getString(c.getColumnIndexOrThrow(JobContract.JobQueue.COLUMN_NAME_DEVICE_ID));
+            executableSha256 = c.getString(c.getColumnIndexOrThrow(JobContract.JobQueue.COLUMN_NAME_EXECUTABLE_SHA256));
+            priority = c.getInt(c.getColumnIndexOrThrow(JobContract.JobQueue.COLUMN_NAME_PRIORITY));
+            deadline = c.getLong(c.getColumnIndexOrThrow(JobContract.JobQueue.COLUMN_NAME_DEADLINE));
+            timeout = c.getLong(c.getColumnIndexOrThrow(JobContract.JobQueue.COLUMN_NAME_TIMEOUT));
+            attempt = c.getInt(c.getColumnIndexOrThrow(JobContract.JobQueue.COLUMN_NAME_ATTEMPT));
+            state = c.getString(c.getColumnIndexOrThrow(JobContract.JobQueue.COLUMN_NAME_STATE));
+            consumedTime = c.getLong(c.getColumnIndexOrThrow(JobContract.JobQueue.COLUMN_NAME_CONSUMED_TIME));
+            resumes = c.getInt(c.getColumnIndexOrThrow(JobContract.JobQueue.COLUMN_NAME_RESUMES));
+        }
+
+        public long getRowId() {
+            return rowId;
+        }
+
+        public String getJobId() {
+            return jobId;
+        }
+
+        public String getExecutableURL() {
+            return executableURL;
+        }
+
+        public String getInputURL() {
+            return inputURL;
+        }
+
+        public String getExecutableFileName() {
+            return executableFileName;
+        }
+
+        public int getFraction() {
+            return fraction;
+        }
+
+        public int getTotalFractions() {
+            return totalFractions;
+        }
+
+        public String getDeviceId() {
+            return deviceId;
+        }
+
+        public String getExecutableSha256() {
+            return executableSha256;
+        }
+
+        public int getPriority() {
+            return priority;
+        }
+
+        public long getDeadline() {
+            return deadline;
+        }
+
+        public long getTimeout() {
+            return timeout;
+        }
+
+        public int getAttempt() {
+            return attempt;
+        }
+
+        public String getState() {
+            return state;
+        }
+
+        public long getConsumedTime() {
+            return consumedTime;
+        }
+
+        // resumes before this one
+        public int getResumes() {
+            return resumes;
+        }
+    }
+
+    private final JobDBHelper jobDBHelper;
+
+    public JobQueueStore(JobDBHelper jobDBHelper) {
+        this.jobDBHelper = jobDBHelper;
+    }
+
+    public long insert(String jobId, String executableURL, String inputURL, String executableFileName,
+                       int fraction, int totalFractions, String deviceId, String executableSha256,
+                       int priority, long deadline, long timeout, int attempt) {
+        SQLiteDatabase db = jobDBHelper.getWritableDatabase();
+        ContentValues values = new ContentValues();
+        values.put(JobContract.JobQueue.COLUMN_NAME_ID, jobId);
+        values.put(JobContract.JobQueue.COLUMN_NAME_EXECUTABLE_URL, executableURL);
+        values.put(JobContract.JobQueue.COLUMN_NAME_INPUT_FILE_URL, inputURL);
+        values.put(JobContract.JobQueue.COLUMN_NAME_EXECUTABLE_FILE_NAME, executableFileName);
+        values.put(JobContract.JobQueue.COLUMN_NAME_FRACTION, fraction);
+        values.put(JobContract.JobQueue.COLUMN_NAME_TOTAL_FRACTIONS, totalFractions);
+        values.put(JobContract.JobQueue.COLUMN_NAME_DEVICE_ID, deviceId);
+        values.put(JobContract.JobQueue.COLUMN_NAME_EXECUTABLE_SHA256, executableSha256);
+        values.put(JobContract.JobQueue.COLUMN_NAME_PRIORITY, priority);
+        values.put(JobContract.JobQueue.COLUMN_NAME_DEADLINE, deadline);
+        values.put(JobContract.JobQueue.COLUMN_NAME_TIMEOUT, timeout);
+        values.put(JobContract.JobQueue.COLUMN_NAME_ATTEMPT, attempt);
+        values.put(JobContract.JobQueue.COLUMN_NAME_STATE, JobContract.JobQueue.STATE_RECEIVED);
+        values.put(JobContract.JobQueue.COLUMN_NAME_CONSUMED_TIME, -1);
+        return db.insert(JobContract.JobQueue.TABLE_NAME, null, values);
+    }
+
+    public void updateState(long rowId, String state) {
+        ContentValues values = new ContentValues();
+        values.put(JobContract.JobQueue.COLUMN_NAME_STATE, state);
+        update(rowId, values);
+    }
+
+    // the execution finished, only the upload is left
+    public void markExecuted(long rowId, long consumedTime) {
+        ContentValues values = new ContentValues();
+        values.put(JobContract.JobQueue.COLUMN_NAME_STATE, JobContract.JobQueue.STATE_UPLOADING);
+        values.put(JobContract.JobQueue.COLUMN_NAME_CONSUMED_TIME, consumedTime);
+        update(rowId, values);
+    }
+
+    // counted before the job runs again, so one that takes the process down is counted as well
+    public void markResumed(long rowId, int resumes) {
+        ContentValues values = new ContentValues();
+        values.put(JobContract.JobQueue.COLUMN_NAME_RESUMES, resumes);
+        update(rowId, values);
+    }
+
+    public List<Entry> pending() {
+        SQLiteDatabase db = jobDBHelper.getReadableDatabase();
+        List<Entry> entries = new ArrayList<>();
+        Cursor c = db.query(JobContract.JobQueue.TABLE_NAME, null,
+                JobContract.JobQueue.COLUMN_NAME_STATE + " != ?",
+                new String[]{JobContract.JobQueue.STATE_DONE},
+                null, null, JobContract.JobQueue._ID);
+        try {
+            while (c.moveToNext())
+                entries.add(new Entry(c));
+        } finally {
+            c.close();
+        }
+        return entries;
+    }
+
+    public int deleteDone() {
+        SQLiteDatabase db = jobDBHelper.getWritableDatabase();
+        return db.delete(JobContract.JobQueue.TABLE_NAME,
+                JobContract.JobQueue.COLUMN_NAME_STATE + " = ?",
+                new String[]{JobContract.JobQueue.STATE_DONE});
+    }
+
+    private void update(long rowId, ContentValues values) {
+        SQLiteDatabase db = jobDBHelper.getWritableDatabase();
+        values.put(JobContract.JobQueue.COLUMN_NAME_UPDATED_AT, now());
+        db.update(JobContract.JobQueue.TABLE_NAME, values, JobContract.JobQueue._ID + " = ?",
+                new String[]{String.valueOf(rowId)});
+    }
+
+    private static String now() {
+        return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US).format(new Date());
+    }
+}
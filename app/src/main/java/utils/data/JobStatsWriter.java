@@ -0,0 +1,64 @@
+package utils.data;
+
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Process;
+
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+
+import timber.log.Timber;
+import utils.BatchWriter;
+import utils.LatencyHistogram;
+
+// queues job stats rows and writes them on a background thread, one transaction per batch, so a
+// finished job never waits for a sqlite commit. a batch is written once it is full or its oldest
+// row waited flushInterval milliseconds.
+public class JobStatsWriter {
+
+    private final BatchWriter<ContentValues> writer;
+
+    // writeLatency receives the duration of every batch transaction
+    public JobStatsWriter(final JobDBHelper jobDBHelper, int batchSize, long flushInterval,
+                          LatencyHistogram writeLatency) {
+        BatchWriter.Sink<ContentValues> sink = new BatchWriter.Sink<ContentValues>() {
+            @Override
+            public void write(List<ContentValues> batch) {
+                SQLiteDatabase db = jobDBHelper.getWritableDatabase();
+                db.beginTransaction();
+                try {
+                    for (ContentValues values : batch)
+                        db.insert(JobContract.Job.TABLE_NAME, null, values);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            }
+        };
+        writer = new BatchWriter<>(sink, batchSize, flushInterval, writeLatency, new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, "job-stats");
+            }
+        });
+    }
+
+    public void insert(ContentValues values) {
+        writer.add(values);
+    }
+
+    // writes the queued rows and stops the writer thread
+    public boolean close(long timeoutMillis) throws InterruptedException {
+        int pending = writer.pending();
+        boolean closed = writer.close(timeoutMillis);
+        if (!closed)
+            Timber.e("stats writer did not finish, up to %s rows not written", pending);
+        return closed;
+    }
+}
@@ -0,0 +1,97 @@
+package utils.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// keeps messages published while the broker was unreachable, so registration, capacity and
+// rejection messages are sent once the connection is back, also after a restart. it holds at most
+// capacity messages, the oldest are dropped first.
+public class OutboxStore {
+
+    public static class Entry {
+        private final long rowId;
+        private final String topic;
+        private final byte[] payload;
+        private final int qos;
+
+        private Entry(Cursor c) {
+            rowId = c.getLong(c.getColumnIndexOrThrow(JobContract.Outbox._ID));
+            topic = c.getString(c.getColumnIndexOrThrow(JobContract.Outbox.COLUMN_NAME_TOPIC));
+            payload = c.getBlob(c.getColumnIndexOrThrow(JobContract.Outbox.COLUMN_NAME_PAYLOAD));
+            qos = c.getInt(c.getColumnIndexOrThrow(JobContract.Outbox.COLUMN_NAME_QOS));
+        }
+
+        public long getRowId() {
+            return rowId;
+        }
+
+        public String getTopic() {
+            return topic;
+        }
+
+        public byte[] getPayload() {
+            return payload;
+        }
+
+        public int getQos() {
+            return qos;
+        }
+    }
+
+    private final JobDBHelper jobDBHelper;
+    private final int capacity;
+
+    public OutboxStore(JobDBHelper jobDBHelper, int capacity) {
+        this.jobDBHelper = jobDBHelper;
+        this.capacity = Math.max(1, capacity);
+    }
+
+    // a message with a key replaces the one buffered under the same key, it is then sent after
+    // the messages buffered in between
+    public long add(String topic, byte[] payload, int qos, String key) {
+        SQLiteDatabase db = jobDBHelper.getWritableDatabase();
+        ContentValues values = new ContentValues();
+        values.put(JobContract.Outbox.COLUMN_NAME_TOPIC, topic);
+        values.put(JobContract.Outbox.COLUMN_NAME_PAYLOAD, payload);
+        values.put(JobContract.Outbox.COLUMN_NAME_QOS, qos);
+        values.put(JobContract.Outbox.COLUMN_NAME_KEY, key);
+        db.beginTransaction();
+        try {
+            if (key != null)
+                db.delete(JobContract.Outbox.TABLE_NAME, JobContract.Outbox.COLUMN_NAME_KEY + " = ?",
+                        new String[]{key});
+            long rowId = db.insert(JobContract.Outbox.TABLE_NAME, null, values);
+            db.delete(JobContract.Outbox.TABLE_NAME, JobContract.Outbox._ID + " <= ?",
+                    new String[]{String.valueOf(rowId - capacity)});
+            db.setTransactionSuccessful();
+            return rowId;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    // oldest first
+    public List<Entry> pending() {
+        SQLiteDatabase db = jobDBHelper.getReadableDatabase();
+        List<Entry> entries = new ArrayList<>();
+        Cursor c = db.query(JobContract.Outbox.TABLE_NAME, null, null, null, null, null,
+                JobContract.Outbox._ID);
+        try {
+            while (c.moveToNext())
+                entries.add(new Entry(c));
+        } finally {
+            c.close();
+        }
+        return entries;
+    }
+
+    public void delete(long rowId) {
+        SQLiteDatabase db = jobDBHelper.getWritableDatabase();
+        db.delete(JobContract.Outbox.TABLE_NAME, JobContract.Outbox._ID + " = ?",
+                new String[]{String.valueOf(rowId)});
+    }
+}
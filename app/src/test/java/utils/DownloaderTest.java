@@ -0,0 +1,201 @@
+package utils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+
+import okhttp3.OkHttpClient;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okhttp3.mockwebserver.SocketPolicy;
+import okio.BufferedSource;
+import okio.ByteString;
+import okio.Okio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DownloaderTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String CONTENT = repeat("0123456789abcdef", 4096);
+    private static final String ETAG = "\"v1\"";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private MockWebServer server;
+    private Downloader downloader;
+    private File target;
+    private File part;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new MockWebServer();
+        server.start();
+        EventSink events = new EventSink() {
+            @Override
+            public void onSuccess(String format, Object... args) {
+            }
+
+            @Override
+            public void onError(String format, Object... args) {
+            }
+        };
+        // one attempt per call, so every test decides what the next request gets
+        downloader = new Downloader(events, new OkHttpClient(), 1, 0);
+        target = new File(folder.getRoot(), "job.dex");
+        part = new File(target.getPath() + Downloader.PART_SUFFIX);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.shutdown();
+    }
+
+    @Test
+    public void downloadsAndVerifiesChecksum() throws Exception {
+        server.enqueue(new MockResponse().setHeader("ETag", ETAG).setBody(CONTENT));
+
+        Downloader.Result result = downloader.download(url(), target, sha256(CONTENT));
+
+        assertEquals(CONTENT, read(target));
+        assertEquals(CONTENT.length(), result.getTransferredBytes());
+        assertFalse(result.isNotModified());
+        assertFalse(part.exists());
+        assertNull(server.takeRequest().getHeader("Range"));
+    }
+
+    @Test
+    public void resumesAnInterruptedDownloadWithRangeAndIfRange() throws Exception {
+        interruptedDownload();
+        long offset = part.length();
+        server.enqueue(new MockResponse().setResponseCode(206).setHeader("ETag", ETAG)
+                .setBody(CONTENT.substring((int) offset)));
+
+        Downloader.Result result = downloader.download(url(), target, sha256(CONTENT));
+
+        RecordedRequest request = server.takeRequest();
+        assertEquals("bytes=" + offset + "-", request.getHeader("Range"));
+        assertEquals(ETAG, request.getHeader("If-Range"));
+        assertEquals(CONTENT, read(target));
+        assertEquals(CONTENT.length() - offset, result.getTransferredBytes());
+        assertFalse(part.exists());
+    }
+
+    @Test
+    public void startsOverWhenTheServerIgnoresTheRange() throws Exception {
+        interruptedDownload();
+        String changed = repeat("fedcba9876543210", 4096);
+        server.enqueue(new MockResponse().setHeader("ETag", "\"v2\"").setBody(changed));
+
+        downloader.download(url(), target, sha256(changed));
+
+        assertEquals(changed, read(target));
+    }
+
+    @Test
+    public void dropsThePartOnRangeNotSatisfiable() throws Exception {
+        interruptedDownload();
+        server.enqueue(new MockResponse().setResponseCode(416));
+
+        try {
+            downloader.download(url(), target, sha256(CONTENT));
+            fail("416 was accepted");
+        } catch (IOException expected) {
+        }
+        assertEquals(ETAG, server.takeRequest().getHeader("If-Range"));
+        assertFalse(part.exists());
+
+        server.enqueue(new MockResponse().setHeader("ETag", ETAG).setBody(CONTENT));
+        downloader.download(url(), target, sha256(CONTENT));
+        assertNull(server.takeRequest().getHeader("Range"));
+        assertEquals(CONTENT, read(target));
+    }
+
+    @Test
+    public void rejectsAChecksumMismatch() throws Exception {
+        server.enqueue(new MockResponse().setHeader("ETag", ETAG).setBody(CONTENT));
+
+        try {
+            downloader.download(url(), target, sha256("something else"));
+            fail("checksum mismatch was accepted");
+        } catch (IOException expected) {
+        }
+        assertFalse(target.exists());
+        assertFalse(part.exists());
+    }
+
+    @Test
+    public void rejectsAMismatchWithTheAnnouncedDigest() throws Exception {
+        server.enqueue(new MockResponse()
+                .setHeader("Digest", "SHA-256=" + ByteString.encodeUtf8("not the content").sha256().base64())
+                .setBody(CONTENT));
+
+        try {
+            downloader.download(url(), target, null);
+            fail("digest mismatch was accepted");
+        } catch (IOException expected) {
+        }
+        assertFalse(target.exists());
+    }
+
+    @Test
+    public void revalidatesADownloadedFile() throws Exception {
+        server.enqueue(new MockResponse().setHeader("ETag", ETAG).setBody(CONTENT));
+        downloader.download(url(), target, null);
+        server.takeRequest();
+        server.enqueue(new MockResponse().setResponseCode(304));
+
+        Downloader.Result result = downloader.download(url(), target, null);
+
+        assertEquals(ETAG, server.takeRequest().getHeader("If-None-Match"));
+        assertTrue(result.isNotModified());
+        assertEquals(CONTENT, read(target));
+    }
+
+    // leaves a part file with the first half of CONTENT
+    private void interruptedDownload() throws Exception {
+        server.enqueue(new MockResponse().setHeader("ETag", ETAG).setBody(CONTENT)
+                .setSocketPolicy(SocketPolicy.DISCONNECT_DURING_RESPONSE_BODY));
+        try {
+            downloader.download(url(), target, sha256(CONTENT));
+            fail("the interrupted download completed");
+        } catch (IOException expected) {
+        }
+        server.takeRequest();
+        assertTrue(part.length() > 0 && part.length() < CONTENT.length());
+    }
+
+    private String url() {
+        return server.url("/executables/job.dex").toString();
+    }
+
+    private static String read(File f) throws IOException {
+        try (BufferedSource source = Okio.buffer(Okio.source(f))) {
+            return source.readString(UTF_8);
+        }
+    }
+
+    private static String sha256(String s) throws Exception {
+        return Downloader.toHex(MessageDigest.getInstance("SHA-256").digest(s.getBytes(UTF_8)));
+    }
+
+    private static String repeat(String s, int times) {
+        StringBuilder sb = new StringBuilder(s.length() * times);
+        for (int i = 0; i < times; i++)
+            sb.append(s);
+        return sb.toString();
+    }
+}
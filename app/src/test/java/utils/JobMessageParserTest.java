@@ -0,0 +1,237 @@
+package utils;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class JobMessageParserTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Test
+    public void binaryRoundTrip() throws Exception {
+        Descriptor d = new Descriptor()
+                .bytes(JobMessageParser.FIELD_JOB_ID, "job-1".getBytes(UTF_8))
+                .bytes(JobMessageParser.FIELD_EXECUTABLE_PATH, "/executables/job.dex".getBytes(UTF_8))
+                .bytes(JobMessageParser.FIELD_INPUT_PATH, "/inputs/in.csv".getBytes(UTF_8))
+                .varint(JobMessageParser.FIELD_FRACTION, 3)
+                .varint(JobMessageParser.FIELD_TOTAL_FRACTIONS, 10)
+                .bytes(JobMessageParser.FIELD_EXECUTABLE_SHA256, new byte[32])
+                .varint(JobMessageParser.FIELD_EXECUTABLE_SIZE, 123456)
+                .varint(JobMessageParser.FIELD_PRIORITY, 7)
+                .varint(JobMessageParser.FIELD_DEADLINE, 1700000000000L)
+                .varint(JobMessageParser.FIELD_TIMEOUT, 60000)
+                .varint(JobMessageParser.FIELD_ATTEMPT, 2);
+
+        List<JobMessage> jobs = JobMessageParser.parse(message(d));
+
+        assertEquals(1, jobs.size());
+        JobMessage job = jobs.get(0);
+        assertEquals("job-1", job.getJobId());
+        assertEquals("/executables/job.dex", job.getExecutablePath());
+        assertEquals("job.dex", job.getExecutableFileName());
+        assertEquals("/inputs/in.csv", job.getInputPath());
+        assertArrayEquals(new int[]{3}, job.getFractions());
+        assertEquals(10, job.getTotalFractions());
+        assertEquals(new String(new char[64]).replace('\0', '0'), job.getExecutableSha256());
+        assertEquals(123456, job.getExecutableSize());
+        assertEquals(7, job.getPriority());
+        assertEquals(1700000000000L, job.getDeadline());
+        assertEquals(60000, job.getTimeout());
+        assertEquals(2, job.getAttempt());
+    }
+
+    @Test
+    public void textJobIdOf16BytesStaysText() throws Exception {
+        List<JobMessage> jobs = JobMessageParser.parse(message(minimal("0123456789abcdef")));
+
+        assertEquals("0123456789abcdef", jobs.get(0).getJobId());
+    }
+
+    @Test
+    public void binaryJobIdIsHexEncoded() throws Exception {
+        byte[] uuid = {0x00, 0x11, 0x22, 0x33, 0x44, 0x55, 0x66, 0x77,
+                (byte) 0x88, (byte) 0x99, (byte) 0xaa, (byte) 0xbb, (byte) 0xcc, (byte) 0xdd, (byte) 0xee, (byte) 0xff};
+        Descriptor d = new Descriptor()
+                .bytes(JobMessageParser.FIELD_JOB_ID_BYTES, uuid)
+                .bytes(JobMessageParser.FIELD_EXECUTABLE_PATH, "/e.dex".getBytes(UTF_8))
+                .bytes(JobMessageParser.FIELD_INPUT_PATH, "/i".getBytes(UTF_8))
+                .varint(JobMessageParser.FIELD_FRACTION, 0)
+                .varint(JobMessageParser.FIELD_TOTAL_FRACTIONS, 1);
+
+        List<JobMessage> jobs = JobMessageParser.parse(message(d));
+
+        assertEquals("00112233445566778899aabbccddeeff", jobs.get(0).getJobId());
+    }
+
+    @Test
+    public void fractionRangeAndList() throws Exception {
+        Descriptor range = minimal("a").varint(JobMessageParser.FIELD_FRACTION_END, 4);
+        Descriptor list = new Descriptor()
+                .bytes(JobMessageParser.FIELD_JOB_ID, "b".getBytes(UTF_8))
+                .bytes(JobMessageParser.FIELD_EXECUTABLE_PATH, "/e.dex".getBytes(UTF_8))
+                .bytes(JobMessageParser.FIELD_INPUT_PATH, "/i".getBytes(UTF_8))
+                .bytes(JobMessageParser.FIELD_FRACTIONS, packed(2, 5, 300))
+                .varint(JobMessageParser.FIELD_TOTAL_FRACTIONS, 1000);
+
+        List<JobMessage> jobs = JobMessageParser.parse(message(range, list));
+
+        assertEquals(2, jobs.size());
+        assertArrayEquals(new int[]{1, 2, 3}, jobs.get(0).getFractions());
+        assertArrayEquals(new int[]{2, 5, 300}, jobs.get(1).getFractions());
+    }
+
+    @Test
+    public void unknownFieldsAreSkipped() throws Exception {
+        Descriptor d = minimal("a")
+                .varint(99, 5)
+                .bytes(100, new byte[]{1, 2, 3});
+
+        List<JobMessage> jobs = JobMessageParser.parse(message(d));
+
+        assertEquals("a", jobs.get(0).getJobId());
+        assertNull(jobs.get(0).getExecutableSha256());
+    }
+
+    @Test
+    public void legacyText() throws Exception {
+        byte[] payload = "/executables/job.dex /inputs/in.csv 3 10 5f0c4a\n".getBytes(UTF_8);
+
+        List<JobMessage> jobs = JobMessageParser.parse(payload);
+
+        assertEquals(1, jobs.size());
+        JobMessage job = jobs.get(0);
+        assertEquals("5f0c4a", job.getJobId());
+        assertEquals("/executables/job.dex", job.getExecutablePath());
+        assertEquals("/inputs/in.csv", job.getInputPath());
+        assertArrayEquals(new int[]{3}, job.getFractions());
+        assertEquals(10, job.getTotalFractions());
+        assertNull(job.getExecutableSha256());
+        assertEquals(-1, job.getExecutableSize());
+    }
+
+    @Test
+    public void malformedLegacyText() {
+        assertMalformed("/e.dex /i 3 10".getBytes(UTF_8));
+        assertMalformed("/e.dex /i 3 10 id extra".getBytes(UTF_8));
+        assertMalformed("/e.dex /i x 10 id".getBytes(UTF_8));
+        assertMalformed("/e.dex /i 3 9999999999 id".getBytes(UTF_8));
+        assertMalformed(new byte[0]);
+    }
+
+    @Test
+    public void malformedBinary() throws Exception {
+        byte[] valid = message(minimal("a"));
+
+        byte[] version = valid.clone();
+        version[2] = 2;
+        assertMalformed(version);
+        // every proper prefix lacks part of the descriptor
+        for (int n = 3; n < valid.length; n++) {
+            byte[] truncated = new byte[n];
+            System.arraycopy(valid, 0, truncated, 0, n);
+            assertMalformed(truncated);
+        }
+        assertMalformed(new byte[]{JobMessageParser.MAGIC_0, JobMessageParser.MAGIC_1, JobMessageParser.VERSION,
+                (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff,
+                (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x01});
+    }
+
+    @Test
+    public void malformedDescriptors() throws Exception {
+        // no input path
+        assertMalformed(message(new Descriptor()
+                .bytes(JobMessageParser.FIELD_JOB_ID, "a".getBytes(UTF_8))
+                .bytes(JobMessageParser.FIELD_EXECUTABLE_PATH, "/e.dex".getBytes(UTF_8))
+                .varint(JobMessageParser.FIELD_FRACTION, 0)
+                .varint(JobMessageParser.FIELD_TOTAL_FRACTIONS, 1)));
+        // fraction beyond the total
+        assertMalformed(message(minimal("a").varint(JobMessageParser.FIELD_TOTAL_FRACTIONS, 1)));
+        // fractions out of order
+        assertMalformed(message(minimal("a").bytes(JobMessageParser.FIELD_FRACTIONS, packed(3, 2))));
+        // empty range
+        assertMalformed(message(minimal("a").varint(JobMessageParser.FIELD_FRACTION_END, 1)));
+        // wire type 5 is not supported
+        assertMalformed(message(minimal("a").raw(new byte[]{(byte) (15 << 3 | 5), 0, 0, 0, 0})));
+        // a truncated executable digest
+        assertMalformed(message(minimal("a").bytes(JobMessageParser.FIELD_EXECUTABLE_SHA256, new byte[31])));
+        // a field longer than its descriptor
+        assertMalformed(message(minimal("a").raw(new byte[]{(byte) (100 << 3 | 2), 0x7f})));
+    }
+
+    private static void assertMalformed(byte[] payload) {
+        try {
+            JobMessageParser.parse(payload);
+            fail("parsed a malformed message");
+        } catch (JobMessageParser.MalformedJobMessageException expected) {
+        }
+    }
+
+    // fraction 1 of 10
+    private static Descriptor minimal(String jobId) {
+        return new Descriptor()
+                .bytes(JobMessageParser.FIELD_JOB_ID, jobId.getBytes(UTF_8))
+                .bytes(JobMessageParser.FIELD_EXECUTABLE_PATH, "/e.dex".getBytes(UTF_8))
+                .bytes(JobMessageParser.FIELD_INPUT_PATH, "/i".getBytes(UTF_8))
+                .varint(JobMessageParser.FIELD_FRACTION, 1)
+                .varint(JobMessageParser.FIELD_TOTAL_FRACTIONS, 10);
+    }
+
+    private static byte[] message(Descriptor... descriptors) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(JobMessageParser.MAGIC_0);
+        out.write(JobMessageParser.MAGIC_1);
+        out.write(JobMessageParser.VERSION);
+        writeVarint(out, descriptors.length);
+        for (Descriptor d : descriptors) {
+            byte[] fields = d.out.toByteArray();
+            writeVarint(out, fields.length);
+            out.write(fields, 0, fields.length);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] packed(long... values) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (long value : values)
+            writeVarint(out, value);
+        return out.toByteArray();
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static class Descriptor {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        Descriptor varint(int field, long value) {
+            writeVarint(out, (long) field << 3 | JobMessageParser.WIRE_VARINT);
+            writeVarint(out, value);
+            return this;
+        }
+
+        Descriptor bytes(int field, byte[] value) {
+            writeVarint(out, (long) field << 3 | JobMessageParser.WIRE_BYTES);
+            writeVarint(out, value.length);
+            out.write(value, 0, value.length);
+            return this;
+        }
+
+        Descriptor raw(byte[] value) {
+            out.write(value, 0, value.length);
+            return this;
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package utils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import okhttp3.OkHttpClient;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+import okio.GzipSource;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ResultUploaderTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int CHUNK_SIZE = 4096;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private MockWebServer server;
+    private UploadServer uploads;
+    private ResultUploader uploader;
+    private String content;
+    private File output;
+
+    @Before
+    public void setUp() throws IOException {
+        uploads = new UploadServer();
+        server = new MockWebServer();
+        server.setDispatcher(uploads);
+        server.start();
+        EventSink events = new EventSink() {
+            @Override
+            public void onSuccess(String format, Object... args) {
+            }
+
+            @Override
+            public void onError(String format, Object... args) {
+            }
+        };
+        uploader = new ResultUploader(events, new OkHttpClient(), server.url("").toString().replaceAll("/$", ""),
+                CHUNK_SIZE, 3, 1, false);
+        // digits compress to about half, so the output takes a few dozen chunks
+        StringBuilder sb = new StringBuilder();
+        Random random = new Random(1);
+        for (int i = 0; i < 20000; i++)
+            sb.append(random.nextInt(1000000)).append(',').append(i).append('\n');
+        content = sb.toString();
+        output = folder.newFile("output");
+        try (OutputStream os = new FileOutputStream(output)) {
+            os.write(content.getBytes(UTF_8));
+        }
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.shutdown();
+    }
+
+    @Test
+    public void uploadsInChunksAndDeclaresTheLengthWithTheLast() throws Exception {
+        long time = upload();
+
+        assertTrue(time >= 0);
+        assertTrue(uploads.patches.size() > 2);
+        for (int i = 0; i < uploads.patches.size() - 1; i++)
+            assertNull(uploads.patches.get(i).getHeader("Upload-Length"));
+        RecordedRequest last = uploads.patches.get(uploads.patches.size() - 1);
+        assertEquals(String.valueOf(uploads.received.size()), last.getHeader("Upload-Length"));
+        assertEquals(content, gunzip(uploads.received));
+    }
+
+    @Test
+    public void continuesFromAShortAcknowledgement() throws Exception {
+        uploads.shortAckAt = 2;
+
+        upload();
+
+        RecordedRequest shortAcked = uploads.patches.get(1);
+        RecordedRequest next = uploads.patches.get(2);
+        assertEquals(Long.parseLong(shortAcked.getHeader("Upload-Offset")) + CHUNK_SIZE / 2,
+                Long.parseLong(next.getHeader("Upload-Offset")));
+        assertEquals(content, gunzip(uploads.received));
+    }
+
+    @Test
+    public void retriesAFailedChunkFromTheOffsetOfTheServer() throws Exception {
+        uploads.failAt = 3;
+
+        long time = upload();
+
+        assertTrue(time >= 0);
+        assertEquals(1, uploads.offsetQueries);
+        RecordedRequest failed = uploads.patches.get(2);
+        RecordedRequest retried = uploads.patches.get(3);
+        // the server kept half of the failed chunk
+        assertEquals(Long.parseLong(failed.getHeader("Upload-Offset")) + CHUNK_SIZE / 2,
+                Long.parseLong(retried.getHeader("Upload-Offset")));
+        assertEquals(content, gunzip(uploads.received));
+    }
+
+    @Test
+    public void fallsBackToTheWholeFileWithoutUploadsEndpoint() throws Exception {
+        uploads.createStatus = 404;
+
+        long time = upload();
+
+        assertTrue(time >= 0);
+        assertTrue(uploads.patches.isEmpty());
+        assertNotNull(uploads.whole);
+        assertTrue(uploads.whole.contains("name=\"file\""));
+        assertTrue(uploads.whole.contains(content));
+    }
+
+    @Test
+    public void alreadyDoneWhenCreatingTheUpload() throws Exception {
+        uploads.createStatus = 409;
+
+        assertEquals(ResultUploader.ALREADY_DONE, upload());
+        assertTrue(uploads.patches.isEmpty());
+        assertNull(uploads.whole);
+    }
+
+    @Test
+    public void alreadyDoneForTheWholeFile() throws Exception {
+        uploads.createStatus = 404;
+        uploads.wholeStatus = 409;
+
+        assertEquals(ResultUploader.ALREADY_DONE, upload());
+        assertEquals(1, uploads.wholeAttempts);
+    }
+
+    @Test
+    public void wholeFileRejectedKeepsTheResult() throws Exception {
+        uploads.createStatus = 404;
+        uploads.wholeStatus = 500;
+
+        assertEquals(-1, upload());
+        assertEquals(3, uploads.wholeAttempts);
+        assertTrue(uploads.patches.isEmpty());
+    }
+
+    private long upload() {
+        return uploader.upload("job", 4, 1, "device", output.getPath(), 10);
+    }
+
+    private static String gunzip(Buffer compressed) throws IOException {
+        Buffer out = new Buffer();
+        GzipSource source = new GzipSource(compressed.clone());
+        while (source.read(out, 8192) != -1) {
+        }
+        return out.readString(UTF_8);
+    }
+
+    // the uploads endpoint and the whole-file endpoint, with faults to inject
+    private static class UploadServer extends Dispatcher {
+        private final Buffer received = new Buffer();
+        private final List<RecordedRequest> patches = new ArrayList<>();
+        private int createStatus = 201;
+        private int wholeStatus = 201;
+        // 1-based patch that keeps half of its chunk and acknowledges that
+        private int shortAckAt = 0;
+        // 1-based patch that keeps half of its chunk and fails
+        private int failAt = 0;
+        private int offsetQueries = 0;
+        private int wholeAttempts = 0;
+        private String whole;
+
+        @Override
+        public synchronized MockResponse dispatch(RecordedRequest request) {
+            String path = request.getPath();
+            if (request.getMethod().equals("POST") && path.equals("/jobs/job/partial-results/uploads/")) {
+                if (createStatus != 201)
+                    return new MockResponse().setResponseCode(createStatus);
+                return new MockResponse().setResponseCode(201).setHeader("Location", "/uploads/1");
+            }
+            if (request.getMethod().equals("POST") && path.equals("/jobs/job/partial-results/")) {
+                wholeAttempts++;
+                if (wholeStatus != 201)
+                    return new MockResponse().setResponseCode(wholeStatus);
+                whole = request.getBody().readString(UTF_8);
+                return new MockResponse().setResponseCode(201);
+            }
+            if (request.getMethod().equals("HEAD") && path.equals("/uploads/1")) {
+                offsetQueries++;
+                return new MockResponse().setHeader("Upload-Offset", received.size());
+            }
+            if (request.getMethod().equals("PATCH") && path.equals("/uploads/1")) {
+                patches.add(request);
+                long offset = Long.parseLong(request.getHeader("Upload-Offset"));
+                if (offset != received.size())
+                    return new MockResponse().setResponseCode(409);
+                Buffer body = request.getBody();
+                if (patches.size() == shortAckAt || patches.size() == failAt) {
+                    received.write(body, Math.min(body.size(), CHUNK_SIZE / 2));
+                    if (patches.size() == failAt)
+                        return new MockResponse().setResponseCode(500);
+                } else {
+                    received.write(body, body.size());
+                }
+                return new MockResponse().setResponseCode(204).setHeader("Upload-Offset", received.size());
+            }
+            return new MockResponse().setResponseCode(404);
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.nxtgizmo.androidmqttdemo.benchmark;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.OkHttpClient;
+import utils.Downloader;
+
+// fetching inputs from a local server: the whole file to disk, checksummed, as for executables, and
+// one fraction of it streamed. bytes reports the transferred bytes per second.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class DownloadBenchmark {
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Transferred {
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytes = 0;
+        }
+    }
+
+    @Param({"65536", "4194304"})
+    public int inputSize;
+
+    private JobServer server;
+    private Downloader downloader;
+    private File dir;
+    private final byte[] buffer = new byte[64 * 1024];
+
+    @Setup
+    public void setup() throws IOException {
+        server = new JobServer(Fixtures.csv(inputSize));
+        downloader = new Downloader(Fixtures.NO_EVENTS, new OkHttpClient(), 1, 0);
+        dir = Files.createTempDirectory("download-benchmark").toFile();
+    }
+
+    @TearDown(Level.Iteration)
+    public void drain() throws InterruptedException {
+        server.drainRecordedRequests();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        server.close();
+        for (File f : dir.listFiles())
+            f.delete();
+        dir.delete();
+    }
+
+    @Benchmark
+    public File download(Transferred transferred) throws IOException {
+        File target = new File(dir, "input-" + Thread.currentThread().getId());
+        // without the previous copy nothing is conditional or resumed
+        target.delete();
+        new File(target.getPath() + Downloader.META_SUFFIX).delete();
+        Downloader.Result result = downloader.download(server.getInputUrl(), target, null);
+        transferred.bytes += result.getTransferredBytes();
+        return result.getFile();
+    }
+
+    @Benchmark
+    public long streamFraction(Transferred transferred) throws IOException {
+        long read = 0;
+        try (Downloader.Slice slice = downloader.openSlice(server.getInputUrl(), 1, 4)) {
+            InputStream is = slice.getInputStream();
+            long length = slice.getEnd() - slice.getStart();
+            int n;
+            while (read < length && (n = is.read(buffer, 0, (int) Math.min(buffer.length, length - read))) != -1)
+                read += n;
+            transferred.bytes += slice.getTransferredBytes();
+        }
+        return read;
+    }
+}
@@ -0,0 +1,100 @@
+package com.nxtgizmo.androidmqttdemo.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+
+import utils.EventSink;
+import utils.JobMessageParser;
+
+// inputs and messages shared by the benchmarks
+final class Fixtures {
+
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // the event log is not part of what is measured
+    static final EventSink NO_EVENTS = new EventSink() {
+        @Override
+        public void onSuccess(String format, Object... args) {
+        }
+
+        @Override
+        public void onError(String format, Object... args) {
+        }
+    };
+
+    private Fixtures() {
+    }
+
+    // csv rows like the ones jobs usually get, so compression behaves as it does with real outputs
+    static byte[] csv(int size) {
+        ByteArrayOutputStream os = new ByteArrayOutputStream(size + 64);
+        long seed = 42;
+        for (int row = 0; os.size() < size; row++) {
+            seed = seed * 6364136223846793005L + 1442695040888963407L;
+            byte[] line = (row + "," + (seed >>> 40) + "," + ((seed >>> 20) & 0xfff) / 100.0 + "\n").getBytes(UTF_8);
+            os.write(line, 0, line.length);
+        }
+        byte[] data = os.toByteArray();
+        byte[] out = new byte[size];
+        System.arraycopy(data, 0, out, 0, size);
+        return out;
+    }
+
+    // a binary job message with one descriptor per fraction of the job, or a single descriptor with
+    // the range of all fractions if batch is set
+    static byte[] binaryJobMessage(String jobId, String executablePath, String inputPath, int fractions,
+                                   int attempt, boolean batch) {
+        ByteArrayOutputStream message = new ByteArrayOutputStream();
+        message.write(JobMessageParser.MAGIC_0);
+        message.write(JobMessageParser.MAGIC_1);
+        message.write(JobMessageParser.VERSION);
+        int descriptors = batch ? 1 : fractions;
+        writeVarint(message, descriptors);
+        for (int fraction = 0; fraction < descriptors; fraction++) {
+            ByteArrayOutputStream d = new ByteArrayOutputStream();
+            writeBytes(d, JobMessageParser.FIELD_JOB_ID, jobId.getBytes(UTF_8));
+            writeBytes(d, JobMessageParser.FIELD_EXECUTABLE_PATH, executablePath.getBytes(UTF_8));
+            writeBytes(d, JobMessageParser.FIELD_INPUT_PATH, inputPath.getBytes(UTF_8));
+            writeVarint(d, JobMessageParser.FIELD_FRACTION, fraction);
+            if (batch)
+                writeVarint(d, JobMessageParser.FIELD_FRACTION_END, fractions);
+            writeVarint(d, JobMessageParser.FIELD_TOTAL_FRACTIONS, fractions);
+            writeBytes(d, JobMessageParser.FIELD_EXECUTABLE_SHA256, new byte[32]);
+            writeVarint(d, JobMessageParser.FIELD_EXECUTABLE_SIZE, 48 * 1024);
+            writeVarint(d, JobMessageParser.FIELD_PRIORITY, 1);
+            writeVarint(d, JobMessageParser.FIELD_DEADLINE, System.currentTimeMillis() + 3600000);
+            writeVarint(d, JobMessageParser.FIELD_TIMEOUT, 600000);
+            writeVarint(d, JobMessageParser.FIELD_ATTEMPT, attempt);
+            writeVarint(message, d.size());
+            byte[] descriptor = d.toByteArray();
+            message.write(descriptor, 0, descriptor.length);
+        }
+        return message.toByteArray();
+    }
+
+    // the legacy format, one fraction per message
+    static byte[] textJobMessage(String jobId, String executablePath, String inputPath, int fraction,
+                                 int totalFractions) {
+        return (executablePath + " " + inputPath + " " + fraction + " " + totalFractions + " " + jobId)
+                .getBytes(UTF_8);
+    }
+
+    private static void writeBytes(ByteArrayOutputStream os, int field, byte[] value) {
+        writeVarint(os, (field << 3) | JobMessageParser.WIRE_BYTES);
+        writeVarint(os, value.length);
+        os.write(value, 0, value.length);
+    }
+
+    private static void writeVarint(ByteArrayOutputStream os, int field, long value) {
+        writeVarint(os, (field << 3) | JobMessageParser.WIRE_VARINT);
+        writeVarint(os, value);
+    }
+
+    private static void writeVarint(ByteArrayOutputStream os, long value) {
+        while ((value & ~0x7fL) != 0) {
+            os.write((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        os.write((int) value);
+    }
+}
@@ -0,0 +1,55 @@
+package com.nxtgizmo.androidmqttdemo.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import utils.JobMessage;
+import utils.JobMessageParser;
+
+// decoding the job messages the device receives over mqtt, per message
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class JobMessageParserBenchmark {
+
+    @Param({"1", "16"})
+    public int fractions;
+
+    private byte[] binary;
+    private byte[] batch;
+    private byte[] text;
+
+    @Setup
+    public void setup() {
+        binary = Fixtures.binaryJobMessage("0123456789abcdef", "/executables/job.dex", JobServer.INPUT_PATH,
+                fractions, 1, false);
+        batch = Fixtures.binaryJobMessage("0123456789abcdef", "/executables/job.dex", JobServer.INPUT_PATH,
+                fractions, 1, true);
+        text = Fixtures.textJobMessage("0123456789abcdef", "/executables/job.dex", JobServer.INPUT_PATH, 0,
+                fractions);
+    }
+
+    @Benchmark
+    public List<JobMessage> binary() throws JobMessageParser.MalformedJobMessageException {
+        return JobMessageParser.parse(binary);
+    }
+
+    @Benchmark
+    public List<JobMessage> batch() throws JobMessageParser.MalformedJobMessageException {
+        return JobMessageParser.parse(batch);
+    }
+
+    @Benchmark
+    public List<JobMessage> text() throws JobMessageParser.MalformedJobMessageException {
+        return JobMessageParser.parse(text);
+    }
+}
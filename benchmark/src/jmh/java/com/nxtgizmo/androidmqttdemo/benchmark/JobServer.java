@@ -0,0 +1,139 @@
+package com.nxtgizmo.androidmqttdemo.benchmark;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.net.ServerSocketFactory;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+
+// the parts of the mdcp server the pipeline talks to: inputs with range support under /inputs/,
+// the chunked uploads endpoint and the whole-file partial results endpoint. no result is ever
+// reported as done, so every upload is sent.
+final class JobServer implements Closeable {
+
+    static final String INPUT_PATH = "/inputs/input.csv";
+
+    private final MockWebServer server = new MockWebServer();
+    private final byte[] input;
+    private final AtomicInteger uploads = new AtomicInteger();
+
+    JobServer(byte[] input) throws IOException {
+        this.input = input;
+        // request bodies are only counted, not kept
+        server.setBodyLimit(0);
+        server.setServerSocketFactory(new NoDelayServerSocketFactory());
+        Logger.getLogger(MockWebServer.class.getName()).setLevel(Level.WARNING);
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                return JobServer.this.dispatch(request);
+            }
+        });
+        server.start();
+    }
+
+    // without a trailing slash, like WEB_ADDRESS
+    String getWebAddress() {
+        String url = server.url("/").toString();
+        return url.substring(0, url.length() - 1);
+    }
+
+    String getInputUrl() {
+        return server.url(INPUT_PATH).toString();
+    }
+
+    // drops the requests the server recorded so far, they pile up over an iteration otherwise
+    void drainRecordedRequests() throws InterruptedException {
+        while (server.takeRequest(0, TimeUnit.MILLISECONDS) != null) {
+            // discarded
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.shutdown();
+    }
+
+    private MockResponse dispatch(RecordedRequest request) {
+        String method = request.getMethod();
+        String path = request.getPath();
+        if (path.equals(INPUT_PATH))
+            return input(request);
+        if (method.equals("POST") && path.endsWith("/partial-results/uploads/"))
+            return new MockResponse().setResponseCode(201)
+                    .setHeader("Location", "/uploads/" + uploads.incrementAndGet());
+        if (method.equals("PATCH") && path.startsWith("/uploads/")) {
+            long offset = Long.parseLong(request.getHeader("Upload-Offset"));
+            return new MockResponse().setResponseCode(204)
+                    .setHeader("Upload-Offset", offset + request.getBodySize());
+        }
+        if (method.equals("POST") && path.endsWith("/partial-results/"))
+            return new MockResponse().setResponseCode(201);
+        return new MockResponse().setResponseCode(404);
+    }
+
+    private MockResponse input(RecordedRequest request) {
+        if (request.getMethod().equals("HEAD"))
+            return new MockResponse()
+                    .setHeader("Accept-Ranges", "bytes")
+                    .setHeader("Content-Length", input.length);
+        String range = request.getHeader("Range");
+        if (range == null || !range.startsWith("bytes="))
+            return new MockResponse().setBody(new Buffer().write(input));
+        int start = Integer.parseInt(range.substring("bytes=".length(), range.indexOf('-')));
+        return new MockResponse().setResponseCode(206)
+                .setHeader("Content-Range", "bytes " + start + "-" + (input.length - 1) + "/" + input.length)
+                .setBody(new Buffer().write(input, start, input.length - start));
+    }
+
+    // mockwebserver writes the headers and the body of a response separately, with nagle on the body
+    // waits for the delayed ack of the headers and every response that is not reused costs 40ms
+    private static class NoDelayServerSocketFactory extends ServerSocketFactory {
+        @Override
+        public ServerSocket createServerSocket() throws IOException {
+            return new ServerSocket() {
+                @Override
+                public Socket accept() throws IOException {
+                    Socket socket = super.accept();
+                    socket.setTcpNoDelay(true);
+                    return socket;
+                }
+            };
+        }
+
+        @Override
+        public ServerSocket createServerSocket(int port) throws IOException {
+            return createServerSocket(port, 50, null);
+        }
+
+        @Override
+        public ServerSocket createServerSocket(int port, int backlog) throws IOException {
+            return createServerSocket(port, backlog, null);
+        }
+
+        @Override
+        public ServerSocket createServerSocket(int port, int backlog, InetAddress address) throws IOException {
+            ServerSocket serverSocket = createServerSocket();
+            try {
+                serverSocket.bind(new InetSocketAddress(address, port), backlog);
+            } catch (IOException e) {
+                serverSocket.close();
+                throw e;
+            }
+            return serverSocket;
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package com.nxtgizmo.androidmqttdemo.benchmark;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+// just enough of an mqtt 3.1.1 broker to run the pipeline without a network: clean sessions, exact
+// topic matches and qos 0 and 1. wildcards, retained messages, wills and qos 2 are not supported.
+final class MiniBroker implements Closeable {
+
+    private static final int CONNECT = 1;
+    private static final int PUBLISH = 3;
+    private static final int PUBACK = 4;
+    private static final int SUBSCRIBE = 8;
+    private static final int UNSUBSCRIBE = 10;
+    private static final int PINGREQ = 12;
+    private static final int DISCONNECT = 14;
+
+    private final ServerSocket serverSocket;
+    // topic -> subscribed connections
+    private final Map<String, List<Connection>> subscriptions = new ConcurrentHashMap<>();
+    private final List<Connection> connections = new CopyOnWriteArrayList<>();
+
+    MiniBroker() throws IOException {
+        serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        }, "broker-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    String getUri() {
+        return "tcp://127.0.0.1:" + serverSocket.getLocalPort();
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        for (Connection connection : connections)
+            connection.close();
+    }
+
+    private void accept() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                Connection connection = new Connection(socket);
+                connections.add(connection);
+                connection.start();
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    private void route(String topic, byte[] payload, int qos) {
+        List<Connection> subscribers = subscriptions.get(topic);
+        if (subscribers == null)
+            return;
+        for (Connection connection : subscribers)
+            connection.publish(topic, payload, qos);
+    }
+
+    private class Connection extends Thread {
+        private final Socket socket;
+        private final DataInputStream in;
+        private final OutputStream out;
+        // topic -> granted qos
+        private final Map<String, Integer> topics = new ConcurrentHashMap<>();
+        private int nextPacketId = 0;
+
+        Connection(Socket socket) throws IOException {
+            super("broker-connection");
+            setDaemon(true);
+            this.socket = socket;
+            in = new DataInputStream(socket.getInputStream());
+            out = new BufferedOutputStream(socket.getOutputStream());
+        }
+
+        @Override
+        public void run() {
+            try {
+                loop();
+            } catch (IOException e) {
+                // the client went away
+            } finally {
+                for (String topic : topics.keySet())
+                    subscriptions.get(topic).remove(this);
+                connections.remove(this);
+                close();
+            }
+        }
+
+        private void loop() throws IOException {
+            while (true) {
+                int header = in.read();
+                if (header < 0)
+                    return;
+                byte[] body = new byte[readLength()];
+                in.readFully(body);
+                switch (header >>> 4) {
+                    case CONNECT:
+                        send(0x20, new byte[]{0, 0});
+                        break;
+                    case PUBLISH:
+                        received(header, body);
+                        break;
+                    case PUBACK:
+                        break;
+                    case SUBSCRIBE:
+                        subscribe(body);
+                        break;
+                    case UNSUBSCRIBE:
+                        unsubscribe(body);
+                        break;
+                    case PINGREQ:
+                        send(0xd0, new byte[0]);
+                        break;
+                    case DISCONNECT:
+                        return;
+                    default:
+                        throw new IOException("unsupported packet type " + (header >>> 4));
+                }
+            }
+        }
+
+        private void received(int header, byte[] body) throws IOException {
+            int qos = (header >>> 1) & 3;
+            int topicLength = readShort(body, 0);
+            String topic = new String(body, 2, topicLength, Fixtures.UTF_8);
+            int pos = 2 + topicLength;
+            if (qos == 2)
+                throw new IOException("qos 2 is not supported");
+            if (qos == 1) {
+                send(PUBACK << 4, Arrays.copyOfRange(body, pos, pos + 2));
+                pos += 2;
+            }
+            route(topic, Arrays.copyOfRange(body, pos, body.length), qos);
+        }
+
+        private void subscribe(byte[] body) throws IOException {
+            ByteArrayOutputStream ack = new ByteArrayOutputStream();
+            ack.write(body, 0, 2);
+            int pos = 2;
+            while (pos < body.length) {
+                int topicLength = readShort(body, pos);
+                String topic = new String(body, pos + 2, topicLength, Fixtures.UTF_8);
+                pos += 2 + topicLength;
+                int granted = Math.min(body[pos++] & 3, 1);
+                if (topics.put(topic, granted) == null) {
+                    List<Connection> subscribers = subscriptions.get(topic);
+                    if (subscribers == null) {
+                        subscriptions.putIfAbsent(topic, new CopyOnWriteArrayList<Connection>());
+                        subscribers = subscriptions.get(topic);
+                    }
+                    subscribers.add(this);
+                }
+                ack.write(granted);
+            }
+            send(0x90, ack.toByteArray());
+        }
+
+        private void unsubscribe(byte[] body) throws IOException {
+            int pos = 2;
+            while (pos < body.length) {
+                int topicLength = readShort(body, pos);
+                String topic = new String(body, pos + 2, topicLength, Fixtures.UTF_8);
+                pos += 2 + topicLength;
+                if (topics.remove(topic) != null)
+                    subscriptions.get(topic).remove(this);
+            }
+            send(0xb0, Arrays.copyOfRange(body, 0, 2));
+        }
+
+        // called on the thread of the publishing connection
+        void publish(String topic, byte[] payload, int qos) {
+            Integer granted = topics.get(topic);
+            int q = Math.min(qos, granted != null ? granted : 0);
+            byte[] name = topic.getBytes(Fixtures.UTF_8);
+            ByteArrayOutputStream body = new ByteArrayOutputStream(name.length + payload.length + 4);
+            body.write(name.length >>> 8);
+            body.write(name.length & 0xff);
+            body.write(name, 0, name.length);
+            if (q > 0) {
+                int id;
+                synchronized (this) {
+                    nextPacketId = nextPacketId % 0xffff + 1;
+                    id = nextPacketId;
+                }
+                body.write(id >>> 8);
+                body.write(id & 0xff);
+            }
+            body.write(payload, 0, payload.length);
+            try {
+                send((PUBLISH << 4) | (q << 1), body.toByteArray());
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        private synchronized void send(int header, byte[] body) throws IOException {
+            out.write(header);
+            int length = body.length;
+            do {
+                int b = length & 0x7f;
+                length >>>= 7;
+                out.write(length > 0 ? b | 0x80 : b);
+            } while (length > 0);
+            out.write(body);
+            out.flush();
+        }
+
+        private int readLength() throws IOException {
+            int length = 0;
+            for (int shift = 0; shift < 28; shift += 7) {
+                int b = in.readUnsignedByte();
+                length |= (b & 0x7f) << shift;
+                if ((b & 0x80) == 0)
+                    return length;
+            }
+            throw new IOException("malformed remaining length");
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // closed already
+            }
+        }
+    }
+
+    private static int readShort(byte[] b, int pos) {
+        return ((b[pos] & 0xff) << 8) | (b[pos + 1] & 0xff);
+    }
+}
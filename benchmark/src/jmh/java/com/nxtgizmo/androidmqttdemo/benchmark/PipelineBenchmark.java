@@ -0,0 +1,198 @@
+package com.nxtgizmo.androidmqttdemo.benchmark;
+
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import okhttp3.OkHttpClient;
+import utils.Downloader;
+import utils.JobMessage;
+import utils.JobMessageParser;
+import utils.ResultUploader;
+
+// a job from the broker to the uploaded result: a scheduler publishes one binary job message per
+// job, the device parses it, streams every fraction of the input, runs a stand-in executable that
+// copies its slice to the output and uploads the output. reports jobs per minute.
+//
+// the android-only stages, loading the dex, the job processes and the sqlite writes, are not part
+// of this; measure them on a device.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MINUTES)
+public class PipelineBenchmark {
+
+    private static final int JOBS = 8;
+    private static final String JOB_TOPIC = "jobs/benchmark";
+
+    @Param({"1048576"})
+    public int inputSize;
+
+    @Param({"4"})
+    public int fractions;
+
+    @Param({"2"})
+    public int slots;
+
+    // all fractions of a job in one descriptor instead of one descriptor each
+    @Param({"false", "true"})
+    public boolean batch;
+
+    private JobServer server;
+    private MiniBroker broker;
+    private MqttClient scheduler;
+    private MqttClient device;
+    private ExecutorService executor;
+    private Downloader downloader;
+    private ResultUploader uploader;
+    private File dir;
+    private final Semaphore finished = new Semaphore(0);
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+    private int nextJob = 0;
+
+    @Setup
+    public void setup() throws IOException, MqttException {
+        server = new JobServer(Fixtures.csv(inputSize));
+        broker = new MiniBroker();
+        dir = Files.createTempDirectory("pipeline-benchmark").toFile();
+        OkHttpClient client = new OkHttpClient();
+        downloader = new Downloader(Fixtures.NO_EVENTS, client, 1, 0);
+        uploader = new ResultUploader(Fixtures.NO_EVENTS, client, server.getWebAddress(), 256 * 1024, 1, 0, true);
+        executor = Executors.newFixedThreadPool(slots);
+
+        MqttConnectOptions options = new MqttConnectOptions();
+        options.setCleanSession(true);
+        options.setMaxInflight(JOBS);
+        device = new MqttClient(broker.getUri(), "device", new MemoryPersistence());
+        device.setCallback(new MqttCallback() {
+            @Override
+            public void connectionLost(Throwable cause) {
+                failure.compareAndSet(null, cause);
+            }
+
+            @Override
+            public void messageArrived(String topic, MqttMessage message) {
+                received(message.getPayload());
+            }
+
+            @Override
+            public void deliveryComplete(IMqttDeliveryToken token) {
+            }
+        });
+        device.connect(options);
+        device.subscribe(JOB_TOPIC, 1);
+        scheduler = new MqttClient(broker.getUri(), "scheduler", new MemoryPersistence());
+        scheduler.connect(options);
+    }
+
+    @TearDown(Level.Iteration)
+    public void drain() throws InterruptedException {
+        server.drainRecordedRequests();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException, MqttException, InterruptedException {
+        scheduler.disconnect();
+        device.disconnect();
+        scheduler.close();
+        device.close();
+        executor.shutdownNow();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+        broker.close();
+        server.close();
+        dir.delete();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(JOBS)
+    public void jobs() throws MqttException, InterruptedException {
+        for (int i = 0; i < JOBS; i++) {
+            byte[] message = Fixtures.binaryJobMessage(String.format("job-%08d", nextJob++), "/executables/job.dex",
+                    JobServer.INPUT_PATH, fractions, 1, batch);
+            scheduler.publish(JOB_TOPIC, message, 1, false);
+        }
+        if (!finished.tryAcquire(JOBS * fractions, 5, TimeUnit.MINUTES))
+            throw new IllegalStateException("jobs did not finish");
+        Throwable t = failure.getAndSet(null);
+        if (t != null)
+            throw new IllegalStateException(t);
+    }
+
+    private void received(byte[] payload) {
+        List<JobMessage> jobs;
+        try {
+            jobs = JobMessageParser.parse(payload);
+        } catch (JobMessageParser.MalformedJobMessageException e) {
+            failure.compareAndSet(null, e);
+            return;
+        }
+        for (final JobMessage job : jobs) {
+            for (final int fraction : job.getFractions()) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            execute(job, fraction);
+                        } catch (Throwable t) {
+                            failure.compareAndSet(null, t);
+                        } finally {
+                            finished.release();
+                        }
+                    }
+                });
+            }
+        }
+    }
+
+    private void execute(JobMessage job, int fraction) throws IOException {
+        File output = new File(dir, job.getJobId() + "_" + fraction);
+        long s = System.currentTimeMillis();
+        try {
+            try (Downloader.Slice slice = downloader.openSlice(server.getWebAddress() + job.getInputPath(),
+                    fraction, job.getTotalFractions());
+                 OutputStream os = new FileOutputStream(output)) {
+                InputStream is = slice.getInputStream();
+                long remaining = slice.getEnd() - slice.getStart();
+                byte[] buffer = new byte[64 * 1024];
+                int n;
+                while (remaining > 0 && (n = is.read(buffer, 0, (int) Math.min(buffer.length, remaining))) != -1) {
+                    os.write(buffer, 0, n);
+                    remaining -= n;
+                }
+            }
+            long consumedTime = System.currentTimeMillis() - s;
+            if (uploader.upload(job.getJobId(), fraction, job.getAttempt(), "benchmark", output.getPath(),
+                    consumedTime) < 0)
+                throw new IOException("upload of " + job.getJobId() + " failed");
+        } finally {
+            output.delete();
+        }
+    }
+}
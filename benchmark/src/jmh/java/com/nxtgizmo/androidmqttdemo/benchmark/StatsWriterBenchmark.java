@@ -0,0 +1,63 @@
+package com.nxtgizmo.androidmqttdemo.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import utils.BatchWriter;
+import utils.LatencyHistogram;
+
+// the batching in front of the job stats table. sqlite is not available on the jvm, so the sink
+// burns a fixed amount of cpu per transaction and per row instead, roughly the shape of a commit
+// that dominates small inserts. reports rows per second from the first add to the last write.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class StatsWriterBenchmark {
+
+    private static final int ROWS = 1000;
+    private static final long TRANSACTION_COST = 20000;
+    private static final long ROW_COST = 200;
+
+    // a stats row, about as wide as the one the client writes
+    static class Row {
+        final String jobId;
+        final int fraction;
+        final long[] times = new long[8];
+
+        Row(String jobId, int fraction) {
+            this.jobId = jobId;
+            this.fraction = fraction;
+        }
+    }
+
+    @Param({"1", "32", "128"})
+    public int batchSize;
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public LatencyHistogram writeRows() throws InterruptedException {
+        LatencyHistogram latency = new LatencyHistogram();
+        BatchWriter<Row> writer = new BatchWriter<>(new BatchWriter.Sink<Row>() {
+            @Override
+            public void write(List<Row> batch) {
+                Blackhole.consumeCPU(TRANSACTION_COST + ROW_COST * batch.size());
+            }
+        }, batchSize, 1000, latency, Executors.defaultThreadFactory());
+        for (int i = 0; i < ROWS; i++)
+            writer.add(new Row("0123456789abcdef", i));
+        if (!writer.close(60000))
+            throw new IllegalStateException(writer.pending() + " rows were not written");
+        return latency;
+    }
+}
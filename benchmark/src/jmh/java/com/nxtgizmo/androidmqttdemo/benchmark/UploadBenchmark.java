@@ -0,0 +1,80 @@
+package com.nxtgizmo.androidmqttdemo.benchmark;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.OkHttpClient;
+import utils.ResultUploader;
+
+// uploading one partial result to a local server, including the dedup check. chunkSize 0 is the
+// whole-file multipart request, anything else the gzipped chunked upload. bytes reports the output
+// bytes uploaded per second, before compression.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class UploadBenchmark {
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Uploaded {
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytes = 0;
+        }
+    }
+
+    @Param({"65536", "4194304"})
+    public int outputSize;
+
+    @Param({"0", "262144"})
+    public long chunkSize;
+
+    private JobServer server;
+    private ResultUploader uploader;
+    private File output;
+
+    @Setup
+    public void setup() throws IOException {
+        server = new JobServer(new byte[0]);
+        uploader = new ResultUploader(Fixtures.NO_EVENTS, new OkHttpClient(), server.getWebAddress(), chunkSize,
+                1, 0, true);
+        output = File.createTempFile("output", ".csv");
+        Files.write(output.toPath(), Fixtures.csv(outputSize));
+    }
+
+    @TearDown(Level.Iteration)
+    public void drain() throws InterruptedException {
+        server.drainRecordedRequests();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        server.close();
+        output.delete();
+    }
+
+    @Benchmark
+    public long upload(Uploaded uploaded) throws IOException {
+        long time = uploader.upload("0123456789abcdef", 0, 1, "benchmark", output.getPath(), 1000);
+        if (time < 0)
+            throw new IOException("upload failed");
+        uploaded.bytes += outputSize;
+        return time;
+    }
+}